@@ -0,0 +1,67 @@
+#!/usr/bin/env bash
+# Builds the fast-startup packaging into target/fast-startup:
+#   1. the jar with Spring AOT generated bean definitions (-Pfast-startup),
+#   2. extracted into application jar + lib/, the layout a JDK AOT cache needs,
+#   3. a JDK 24 AOT cache (JEP 483) recorded by a training run that calls /columns, /upload
+#      and /download against a local ClickHouse.
+# Needs JDK 24+, curl, and Docker unless a ClickHouse is reachable at CH_HOST:CH_PORT.
+set -euo pipefail
+cd "$(dirname "$0")/.."
+
+PORT=${PORT:-18081}
+OUT=target/fast-startup
+JAR=$OUT/bidirectional-0.0.1-SNAPSHOT.jar
+
+source scripts/clickhouse-stand-in.sh
+APP=
+cleanup() {
+    [ -n "$APP" ] && kill "$APP" 2>/dev/null || true
+    stop_stand_in
+}
+trap cleanup EXIT
+
+./mvnw -B -q -Pfast-startup -DskipTests package
+rm -rf "$OUT"
+java -Djarmode=tools -jar target/bidirectional-0.0.1-SNAPSHOT.jar extract --destination "$OUT"
+
+clickhouse_query "DROP TABLE IF EXISTS aot_training"
+clickhouse_query "CREATE TABLE aot_training (id UInt32, name String, ts DateTime) ENGINE = MergeTree PARTITION BY toYYYYMM(ts) ORDER BY id"
+
+awk 'BEGIN { print "id,name,ts"; for (i = 1; i <= 20000; i++) printf "%d,name%d,2025-%02d-01 00:00:00\n", 20001 - i, i, i % 12 + 1 }' \
+    > "$OUT/training.csv"
+
+# Training run: whatever is loaded and linked until the JVM exits goes into the configuration
+java -XX:AOTMode=record -XX:AOTConfiguration="$OUT/app.aotconf" -Dspring.aot.enabled=true \
+    -jar "$JAR" --server.port="$PORT" --spring.profiles.active=fast-startup &
+APP=$!
+wait_for_first_request "$PORT"
+
+COLUMNS='"columnTypes":{"id":"UInt32","name":"String","ts":"DateTime"}'
+BASE="http://localhost:$PORT/api/clickhouse"
+for config in \
+    "{\"connection\":$CONNECTION,\"tableName\":\"aot_training\",\"delimiter\":\",\",\"totalCols\":3,$COLUMNS}" \
+    "{\"connection\":$CONNECTION,\"tableName\":\"aot_training\",\"delimiter\":\",\",\"totalCols\":3,$COLUMNS,\"presort\":true,\"partitionRouting\":true,\"maxErrors\":10}"
+do
+    # Once the fast path (CSV passed through), once the parse path with sorting and routing
+    echo "$config" > "$OUT/upload.json"
+    curl -sf -o /dev/null -F "file=@$OUT/training.csv" -F "config=<$OUT/upload.json" "$BASE/upload"
+done
+
+for _ in 1 2; do
+    # The second one is served from the export cache
+    curl -sf -o /dev/null -H 'Content-Type: application/json' \
+        -d "{\"connection\":$CONNECTION,\"tableName\":\"aot_training\",\"columns\":[\"id\",\"name\",\"ts\"],\"delimiter\":\",\"}" \
+        "$BASE/download"
+done
+
+kill -TERM "$APP"
+wait "$APP" || true
+APP=
+
+java -XX:AOTMode=create -XX:AOTConfiguration="$OUT/app.aotconf" -XX:AOTCache="$OUT/app.aot" \
+    -Dspring.aot.enabled=true -jar "$JAR"
+clickhouse_query "DROP TABLE IF EXISTS aot_training"
+
+echo
+echo "Run with:"
+echo "  java -XX:AOTCache=$OUT/app.aot -Dspring.aot.enabled=true -jar $JAR --spring.profiles.active=fast-startup"
@@ -0,0 +1,49 @@
+# Sourced by the fast-startup scripts. Makes sure a ClickHouse answers on CH_HOST:CH_PORT,
+# starting a throwaway Docker container when nothing is listening there yet, and defines the
+# connection JSON the training and measurement requests use.
+
+CH_HOST=${CH_HOST:-localhost}
+CH_PORT=${CH_PORT:-8123}
+CH_USER=${CH_USER:-default}
+CH_PASSWORD=${CH_PASSWORD:-}
+CH_CONTAINER=bidirectional-clickhouse-stand-in
+
+if ! curl -sf "http://$CH_HOST:$CH_PORT/ping" >/dev/null; then
+    echo "Starting ClickHouse stand-in on port $CH_PORT"
+    docker run -d --rm --name "$CH_CONTAINER" -p "$CH_PORT:8123" \
+        -e CLICKHOUSE_SKIP_USER_SETUP=1 clickhouse/clickhouse-server:latest >/dev/null
+    STARTED_STAND_IN=1
+
+    for _ in $(seq 60); do
+        curl -sf "http://$CH_HOST:$CH_PORT/ping" >/dev/null && break
+        sleep 1
+    done
+fi
+
+stop_stand_in() {
+    if [ -n "${STARTED_STAND_IN:-}" ]; then
+        docker stop "$CH_CONTAINER" >/dev/null || true
+    fi
+}
+
+clickhouse_query() {
+    curl -sf -u "$CH_USER:$CH_PASSWORD" "http://$CH_HOST:$CH_PORT/" --data-binary "$1" >/dev/null
+}
+
+CONNECTION=$(printf '{"protocol":"http","host":"%s","port":%s,"database":"default","username":"%s","authType":"password","password":"%s"}' \
+    "$CH_HOST" "$CH_PORT" "$CH_USER" "$CH_PASSWORD")
+
+# Polls the columns endpoint until the application answers, the first request of a fresh JVM
+wait_for_first_request() {
+    local port=$1
+    for _ in $(seq 1200); do
+        if curl -sf -o /dev/null -H 'Content-Type: application/json' \
+            -d "{\"connection\":$CONNECTION,\"tableName\":\"aot_training\"}" \
+            "http://localhost:$port/api/clickhouse/columns"; then
+            return 0
+        fi
+        sleep 0.05
+    done
+    echo "Application did not answer on port $port" >&2
+    return 1
+}
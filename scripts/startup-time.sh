@@ -0,0 +1,49 @@
+#!/usr/bin/env bash
+# Measures time-to-first-request: from starting the JVM until the first /columns call against
+# ClickHouse is answered, which includes creating the lazily initialized controller, services
+# and the ClickHouse client. Compares the plain jar with the fast-startup packaging built by
+# scripts/aot-training.sh, RUNS times each, and prints the median in milliseconds.
+set -euo pipefail
+cd "$(dirname "$0")/.."
+
+PORT=${PORT:-18082}
+RUNS=${RUNS:-5}
+OUT=target/fast-startup
+JAR=$OUT/bidirectional-0.0.1-SNAPSHOT.jar
+
+[ -f "$OUT/app.aot" ] || { echo "Run scripts/aot-training.sh first" >&2; exit 1; }
+
+source scripts/clickhouse-stand-in.sh
+APP=
+cleanup() {
+    [ -n "$APP" ] && kill "$APP" 2>/dev/null || true
+    stop_stand_in
+}
+trap cleanup EXIT
+
+measure() {
+    local name=$1
+    shift
+    local times=()
+
+    for _ in $(seq "$RUNS"); do
+        local start
+        start=$(date +%s%N)
+        "$@" --server.port="$PORT" >/dev/null 2>&1 &
+        APP=$!
+        wait_for_first_request "$PORT"
+        times+=($(( ($(date +%s%N) - start) / 1000000 )))
+
+        kill -TERM "$APP"
+        wait "$APP" || true
+        APP=
+    done
+
+    local median
+    median=$(printf '%s\n' "${times[@]}" | sort -n | sed -n "$(( (RUNS + 1) / 2 ))p")
+    printf '%-14s median %5d ms  (runs: %s)\n' "$name" "$median" "${times[*]}"
+}
+
+measure "before" java -jar target/bidirectional-0.0.1-SNAPSHOT.jar
+measure "fast-startup" java -XX:AOTCache="$OUT/app.aot" -Dspring.aot.enabled=true -jar "$JAR" \
+    --spring.profiles.active=fast-startup
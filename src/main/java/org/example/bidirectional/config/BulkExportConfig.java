@@ -0,0 +1,34 @@
+package org.example.bidirectional.config;
+
+import java.util.List;
+
+public class BulkExportConfig {
+    private ConnectionConfig connection;
+    private List<SelectedColumnsQueryConfig> exports;
+    private Integer parallelism;
+
+    // Getters and Setters
+    public ConnectionConfig getConnection() {
+        return connection;
+    }
+
+    public void setConnection(ConnectionConfig connection) {
+        this.connection = connection;
+    }
+
+    public List<SelectedColumnsQueryConfig> getExports() {
+        return exports;
+    }
+
+    public void setExports(List<SelectedColumnsQueryConfig> exports) {
+        this.exports = exports;
+    }
+
+    public Integer getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(Integer parallelism) {
+        this.parallelism = parallelism;
+    }
+}
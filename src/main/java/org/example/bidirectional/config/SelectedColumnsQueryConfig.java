@@ -1,7 +1,9 @@
 package org.example.bidirectional.config;
 
 import java.util.List;
+import org.example.bidirectional.model.FilterCondition;
 import org.example.bidirectional.model.JoinTable;
+import org.example.bidirectional.model.OrderByColumn;
 
 public class SelectedColumnsQueryConfig {
     private ConnectionConfig connection;
@@ -9,6 +11,37 @@ public class SelectedColumnsQueryConfig {
     private List<String> columns;
     private String delimiter;
     private List<JoinTable> joinTables;
+    private List<FilterCondition> filters;
+    private List<String> partitionIds;
+    private List<OrderByColumn> orderBy;
+    private Long limit;
+    private Long offset;
+    private Double sampleRatio;
+    private String joinAlgorithm;
+    private Long maxBytesInJoin;
+    private String watermarkColumn;  // Set for incremental exports
+    private String watermarkFrom;    // Overrides the stored high-water mark
+
+    // Constructors
+    public SelectedColumnsQueryConfig() {}
+
+    public SelectedColumnsQueryConfig(SelectedColumnsQueryConfig other) {
+        this.connection = other.connection;
+        this.tableName = other.tableName;
+        this.columns = other.columns;
+        this.delimiter = other.delimiter;
+        this.joinTables = other.joinTables;
+        this.filters = other.filters;
+        this.partitionIds = other.partitionIds;
+        this.orderBy = other.orderBy;
+        this.limit = other.limit;
+        this.offset = other.offset;
+        this.sampleRatio = other.sampleRatio;
+        this.joinAlgorithm = other.joinAlgorithm;
+        this.maxBytesInJoin = other.maxBytesInJoin;
+        this.watermarkColumn = other.watermarkColumn;
+        this.watermarkFrom = other.watermarkFrom;
+    }
 
     // Getters and Setters
     public ConnectionConfig getConnection() {
@@ -50,4 +83,84 @@ public class SelectedColumnsQueryConfig {
     public void setJoinTables(List<JoinTable> joinTables) {
         this.joinTables = joinTables;
     }
+
+    public List<FilterCondition> getFilters() {
+        return filters;
+    }
+
+    public void setFilters(List<FilterCondition> filters) {
+        this.filters = filters;
+    }
+
+    public List<String> getPartitionIds() {
+        return partitionIds;
+    }
+
+    public void setPartitionIds(List<String> partitionIds) {
+        this.partitionIds = partitionIds;
+    }
+
+    public List<OrderByColumn> getOrderBy() {
+        return orderBy;
+    }
+
+    public void setOrderBy(List<OrderByColumn> orderBy) {
+        this.orderBy = orderBy;
+    }
+
+    public Long getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Long limit) {
+        this.limit = limit;
+    }
+
+    public Long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(Long offset) {
+        this.offset = offset;
+    }
+
+    public Double getSampleRatio() {
+        return sampleRatio;
+    }
+
+    public void setSampleRatio(Double sampleRatio) {
+        this.sampleRatio = sampleRatio;
+    }
+
+    public String getJoinAlgorithm() {
+        return joinAlgorithm;
+    }
+
+    public void setJoinAlgorithm(String joinAlgorithm) {
+        this.joinAlgorithm = joinAlgorithm;
+    }
+
+    public Long getMaxBytesInJoin() {
+        return maxBytesInJoin;
+    }
+
+    public void setMaxBytesInJoin(Long maxBytesInJoin) {
+        this.maxBytesInJoin = maxBytesInJoin;
+    }
+
+    public String getWatermarkColumn() {
+        return watermarkColumn;
+    }
+
+    public void setWatermarkColumn(String watermarkColumn) {
+        this.watermarkColumn = watermarkColumn;
+    }
+
+    public String getWatermarkFrom() {
+        return watermarkFrom;
+    }
+
+    public void setWatermarkFrom(String watermarkFrom) {
+        this.watermarkFrom = watermarkFrom;
+    }
 }
@@ -1,5 +1,6 @@
 package org.example.bidirectional.config;
 
+import java.util.List;
 import java.util.Map;
 
 public class UploadConfig {
@@ -9,6 +10,38 @@ public class UploadConfig {
     private boolean createNewTable = false;
     private String delimiter;
     private Map<String, String> columnTypes;
+    private Integer parallelism;
+    private String localPath; // Relative to config.ingest.local-root, for /upload-local
+    private String filePattern; // Glob of the files /watch tails inside localPath
+    private String reloadMode; // null to append, "table" or "partitions" to reload through a shadow table
+    private List<String> reloadPartitions; // Partition ids replaced by a "partitions" reload
+    private Long expectedRows; // Checked against the staged rows before a reload is swapped in
+    private Long maxErrors; // Setting either limit enables tolerant ingestion with a quarantine file
+    private Double maxErrorRatio;
+    private boolean presort = false; // Sort rows by the table's ORDER BY key before inserting
+    private boolean partitionRouting = false; // One insert per partition of the table instead of file order
+
+    // Constructors
+    public UploadConfig() {}
+
+    public UploadConfig(UploadConfig other) {
+        this.totalCols = other.totalCols;
+        this.connection = other.connection;
+        this.tableName = other.tableName;
+        this.createNewTable = other.createNewTable;
+        this.delimiter = other.delimiter;
+        this.columnTypes = other.columnTypes;
+        this.parallelism = other.parallelism;
+        this.localPath = other.localPath;
+        this.filePattern = other.filePattern;
+        this.reloadMode = other.reloadMode;
+        this.reloadPartitions = other.reloadPartitions;
+        this.expectedRows = other.expectedRows;
+        this.maxErrors = other.maxErrors;
+        this.maxErrorRatio = other.maxErrorRatio;
+        this.presort = other.presort;
+        this.partitionRouting = other.partitionRouting;
+    }
 
     // Getters and Setters
     public Integer getTotalCols() {
@@ -58,4 +91,88 @@ public class UploadConfig {
     public void setColumnTypes(Map<String, String> columnTypes) {
         this.columnTypes = columnTypes;
     }
+
+    public Integer getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(Integer parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public String getLocalPath() {
+        return localPath;
+    }
+
+    public void setLocalPath(String localPath) {
+        this.localPath = localPath;
+    }
+
+    public String getFilePattern() {
+        return filePattern;
+    }
+
+    public void setFilePattern(String filePattern) {
+        this.filePattern = filePattern;
+    }
+
+    public String getReloadMode() {
+        return reloadMode;
+    }
+
+    public void setReloadMode(String reloadMode) {
+        this.reloadMode = reloadMode;
+    }
+
+    public List<String> getReloadPartitions() {
+        return reloadPartitions;
+    }
+
+    public void setReloadPartitions(List<String> reloadPartitions) {
+        this.reloadPartitions = reloadPartitions;
+    }
+
+    public Long getExpectedRows() {
+        return expectedRows;
+    }
+
+    public void setExpectedRows(Long expectedRows) {
+        this.expectedRows = expectedRows;
+    }
+
+    public Long getMaxErrors() {
+        return maxErrors;
+    }
+
+    public void setMaxErrors(Long maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    public Double getMaxErrorRatio() {
+        return maxErrorRatio;
+    }
+
+    public void setMaxErrorRatio(Double maxErrorRatio) {
+        this.maxErrorRatio = maxErrorRatio;
+    }
+
+    public boolean isPresort() {
+        return presort;
+    }
+
+    public void setPresort(boolean presort) {
+        this.presort = presort;
+    }
+
+    public boolean isPartitionRouting() {
+        return partitionRouting;
+    }
+
+    public void setPartitionRouting(boolean partitionRouting) {
+        this.partitionRouting = partitionRouting;
+    }
+
+    public boolean isTolerant() {
+        return maxErrors != null || maxErrorRatio != null;
+    }
 }
@@ -1,37 +1,108 @@
 package org.example.bidirectional.controller;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.example.bidirectional.config.*;
+import org.example.bidirectional.exception.AdmissionRejectedException;
 import org.example.bidirectional.exception.AuthenticationException;
+import org.example.bidirectional.exception.NotFoundException;
 import org.example.bidirectional.model.ColumnInfo;
+import org.example.bidirectional.model.ExportArtifact;
+import org.example.bidirectional.model.ExportEstimate;
+import org.example.bidirectional.model.FileIngestResult;
+import org.example.bidirectional.model.WatchStatus;
+import org.example.bidirectional.service.AdmissionService;
+import org.example.bidirectional.service.BandwidthService;
 import org.example.bidirectional.service.ClickHouseService;
+import org.example.bidirectional.service.DirectoryWatchService;
+import org.example.bidirectional.service.ExportCacheService;
 import org.example.bidirectional.service.FileService;
 import org.example.bidirectional.service.IngestionService;
-import org.springframework.core.io.FileSystemResource;
+import org.example.bidirectional.service.ProgressService;
+import org.example.bidirectional.service.QuarantineService;
+import org.example.bidirectional.service.WatermarkService;
+import org.example.bidirectional.util.RangeFileWriter;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.beans.factory.annotation.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
 
+import com.clickhouse.data.ClickHouseFormat;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 @RestController
 @RequestMapping("/api/clickhouse")
 public class IngestionController {
+    private static final Logger log = LoggerFactory.getLogger(IngestionController.class);
+    private static final int PREVIEW_ROWS = 100;
+
     @Value("${config.frontend}")
     private String frontendUrl;
 
+    @Value("${config.export.bulk-parallelism}")
+    private int maxBulkParallelism;
+
+    @Value("${config.ingest.bulk-parallelism}")
+    private int maxBulkUploadParallelism;
+
+    @Value("${config.ingest.presort-run-size}")
+    private DataSize presortRunSize;
+
+    @Value("${config.ingest.partition-buffer-size}")
+    private DataSize partitionBufferSize;
+
+    private final ExportCacheService exportCacheService;
+    private final FileService fileService;
+    private final AdmissionService admissionService;
+    private final BandwidthService bandwidthService;
+    private final WatermarkService watermarkService;
+    private final DirectoryWatchService directoryWatchService;
+    private final QuarantineService quarantineService;
+    private final ProgressService progressService;
+
+    public IngestionController(
+            ExportCacheService exportCacheService,
+            FileService fileService,
+            AdmissionService admissionService,
+            BandwidthService bandwidthService,
+            WatermarkService watermarkService,
+            DirectoryWatchService directoryWatchService,
+            QuarantineService quarantineService,
+            ProgressService progressService
+    ) {
+        this.exportCacheService = exportCacheService;
+        this.fileService = fileService;
+        this.admissionService = admissionService;
+        this.bandwidthService = bandwidthService;
+        this.watermarkService = watermarkService;
+        this.directoryWatchService = directoryWatchService;
+        this.quarantineService = quarantineService;
+        this.progressService = progressService;
+    }
+
     @PostConstruct
     public void init() {
-        System.out.println("Ensure FrontEnd is running on: " + frontendUrl);
+        log.info("Ensure FrontEnd is running on: {}", frontendUrl);
     }
 
     @PostMapping("/test-connection")
@@ -81,83 +152,287 @@ public class IngestionController {
         try {
             ClickHouseService clickHouseService = new ClickHouseService(config.getConnection());
 
-            List<String[]> rows = clickHouseService.querySelectedColumns(
-                    config.getTableName(),
-                    config.getColumns(),
-                    config.getJoinTables(),
-                    config.getDelimiter()
-            );
+            List<String[]> rows = clickHouseService.querySelectedColumns(config);
 
             // Build response: first row is headers, remaining rows are data
             return getHeadAndData(rows);
+        } catch (IllegalArgumentException e) {
+            throw e;
         } catch (Exception e) {
             throw new IllegalArgumentException("Failed to query selected columns.");
         }
     }
 
+    @PostMapping("/estimate")
+    public ResponseEntity<ExportEstimate> estimateExport(@RequestBody SelectedColumnsQueryConfig config) {
+        ClickHouseService clickHouseService = new ClickHouseService(config.getConnection());
+        return ResponseEntity.ok(clickHouseService.estimateExport(config));
+    }
+
     @PostMapping(value = "/preview-csv", consumes = {"multipart/form-data"})
     public ResponseEntity<Map<String, Object>> previewCSV(
             @RequestPart("file") MultipartFile file,
             @RequestParam(value = "delimiter", defaultValue = ",") String delimiter
     ) throws Exception {
-        try {
-            List<String[]> rows = FileService.readCsvRows(file.getInputStream(), delimiter);
-            return getHeadAndData(rows);
+        // Only the header and the preview rows are parsed, however large the file is
+        try (Stream<String[]> records = FileService.streamCsvRows(file.getInputStream(), delimiter)) {
+            return getHeadAndData(records.limit(PREVIEW_ROWS + 1).toList());
         } catch (Exception e) {
             throw new Exception("Failed to preview CSV. Please check if file exists.");
         }
     }
 
     @PostMapping("/download")
-    public ResponseEntity<FileSystemResource> ingestToFile(@RequestBody SelectedColumnsQueryConfig request) throws IOException {
-        long lineCount;
-        ClickHouseService clickHouseService = new ClickHouseService(request.getConnection());
-        IngestionService ingestionService = new IngestionService(clickHouseService);
-
-        // Creating temp file and writing to it
-        Path path = Files.createTempFile(request.getTableName() + "_export", Math.random() + ".csv");
-        try (OutputStream outStream = Files.newOutputStream(path)) {
-            lineCount = ingestionService.streamDataToOutputStream(request, outStream);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    public void ingestToFile(
+            @RequestBody SelectedColumnsQueryConfig request,
+            @RequestHeader(value = "X-Operation-Id", required = false) String operationId,
+            HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse
+    ) throws Exception {
+        try (var operation = progressService.start(request.getConnection(), operationId, "export", 0)) {
+            httpResponse.setHeader("X-Operation-Id", operation.getId());
+
+            ClickHouseService clickHouseService = new ClickHouseService(request.getConnection());
+            IngestionService ingestionService = new IngestionService(clickHouseService, bandwidthService);
+            ingestionService.track(operation);
+
+            if (request.getWatermarkColumn() != null && !request.getWatermarkColumn().isBlank()) {
+                try (var _ = admissionService.admit(request.getConnection(), AdmissionService.JobKind.EXPORT)) {
+                    exportIncremental(request, clickHouseService, ingestionService, httpRequest, httpResponse);
+                }
+                operation.succeeded();
+                return;
+            }
+
+            // A 304 or a cache hit runs no export and writes nothing to disk, so neither waits
+            // for admission nor is turned away by its free disk check
+            String etag = ingestionService.currentEtag(request, exportCacheService);
+            if (etag != null && etag.equals(httpRequest.getHeader(HttpHeaders.IF_NONE_MATCH))) {
+                httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                httpResponse.setHeader(HttpHeaders.ETAG, etag);
+                operation.succeeded();
+                return;
+            }
+
+            Optional<ExportCacheService.Lease> cached = ingestionService.lookupExport(request, exportCacheService);
+            if (cached.isPresent()) {
+                try (var lease = cached.get()) {
+                    writeArtifact(lease.getArtifact(), request.getTableName(), httpRequest, httpResponse);
+                }
+                operation.succeeded();
+                return;
+            }
+
+            // Still looks in the cache first, the same export may have finished while this one waited
+            try (var _ = admissionService.admit(request.getConnection(), AdmissionService.JobKind.EXPORT);
+                 var lease = ingestionService.exportToCache(request, exportCacheService)) {
+                writeArtifact(lease.getArtifact(), request.getTableName(), httpRequest, httpResponse);
+            }
+            operation.succeeded();
         }
+    }
+
+    /**
+     * Incremental export, see {@link WatermarkService#exportIncrement}. The whole increment was
+     * delivered once it is written without sendfile and flushed with a 200.
+     */
+    private void exportIncremental(
+            SelectedColumnsQueryConfig request,
+            ClickHouseService clickHouseService,
+            IngestionService ingestionService,
+            HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse
+    ) throws Exception {
+        watermarkService.exportIncrement(request, previous -> clickHouseService.getWatermarkRange(request, previous),
+                (increment, previous, watermark) -> {
+                    if (watermark != null)
+                        httpResponse.setHeader("X-Watermark", watermark);
+                    if (previous != null)
+                        httpResponse.setHeader("X-Previous-Watermark", previous);
+
+                    try (var lease = ingestionService.exportToCache(increment, exportCacheService)) {
+                        // Not handed to sendfile, so once this returns every byte was written to the connection
+                        writeArtifact(lease.getArtifact(), request.getTableName(), httpRequest, httpResponse, false);
+                        httpResponse.flushBuffer();
+                    }
 
-        // Creating fileSystemResource for downloading
-        FileSystemResource resource = getFileSystemResource(path);
-        String cleanFilename = request.getTableName().replaceAll("[^a-zA-Z0-9-_]", "_") + ".csv";
+                    // A 304 or a range is not the whole increment, the client has to ask again for the rest
+                    return httpResponse.getStatus() == HttpServletResponse.SC_OK;
+                });
+    }
+
+    @PostMapping("/download-bulk")
+    public ResponseEntity<StreamingResponseBody> ingestToArchive(
+            @RequestBody BulkExportConfig request,
+            @RequestHeader(value = "X-Operation-Id", required = false) String operationId,
+            HttpServletRequest httpRequest
+    ) {
+        if (request.getExports() == null || request.getExports().isEmpty())
+            throw new IllegalArgumentException("At least one export is required");
+
+        int parallelism = request.getParallelism() == null
+                ? maxBulkParallelism
+                : Math.clamp(request.getParallelism(), 1, maxBulkParallelism);
+
+        // The archive is written after this method returns, so the ticket is released by the body,
+        // or when the async request ends without the body having run
+        AdmissionService.Ticket ticket = admissionService.admit(
+                request.getConnection(), AdmissionService.JobKind.EXPORT, parallelism);
+        closeWhenAsyncEnds(httpRequest, ticket);
+        StreamingResponseBody archive;
+        ProgressService.Operation operation;
+        try {
+            // One client for the whole archive, it is safe to share between threads
+            ClickHouseService clickHouseService = new ClickHouseService(request.getConnection());
+            IngestionService ingestionService = new IngestionService(clickHouseService, bandwidthService);
+
+            for (SelectedColumnsQueryConfig export : request.getExports())
+                export.setConnection(request.getConnection());
+
+            archive = ingestionService.exportToZip(request.getExports(), exportCacheService, parallelism);
+
+            // Started last, nothing that could fail is left between here and the body. Closed by
+            // the body, or when the async request ends without it, otherwise it would stay RUNNING
+            operation = progressService.start(request.getConnection(), operationId, "export", 0);
+            closeWhenAsyncEnds(httpRequest, operation);
+            ingestionService.track(operation);
+        } catch (RuntimeException e) {
+            ticket.close();
+            throw e;
+        }
+
+        // Exports still running when the client goes away are killed when the operation closes
+        StreamingResponseBody body = outputStream -> {
+            try (ticket; operation) {
+                archive.writeTo(outputStream);
+                operation.succeeded();
+            }
+        };
 
         return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + cleanFilename)
-                .header(HttpHeaders.ACCESS_CONTROL_EXPOSE_HEADERS, "Content-Disposition, Content-Length", "X-Line-Count")
-                .header("X-Line-Count", String.valueOf(lineCount))
-                .contentType(MediaType.parseMediaType("text/csv"))
-                .contentLength(resource.contentLength())
-                .body(resource);
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=export.zip")
+                .header(HttpHeaders.ACCESS_CONTROL_EXPOSE_HEADERS, "Content-Disposition, X-Operation-Id")
+                .header("X-Operation-Id", operation.getId())
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .body(body);
     }
 
-    private static FileSystemResource getFileSystemResource(Path path) {
-        File file = path.toFile();
-        return new FileSystemResource(file) {
-            @Override
-            public InputStream getInputStream() throws IOException {
-                InputStream original = super.getInputStream();
-                return new FilterInputStream(original) {
-                    @Override
-                    public void close() throws IOException {
-                        super.close();
-
-                        try { Files.deleteIfExists(file.toPath()); }
-                        catch (IOException _) {}
-                    }
-                };
+    /**
+     * Streams the selected rows as NDJSON (JSONEachRow) or JSONCompactEachRow for programmatic
+     * consumers. Unlike /query-selected-columns there is no row cap and nothing is buffered.
+     */
+    @PostMapping("/stream")
+    public ResponseEntity<StreamingResponseBody> streamRows(
+            @RequestBody SelectedColumnsQueryConfig request,
+            @RequestParam(value = "format", defaultValue = "JSONEachRow") String format,
+            @RequestHeader(value = "X-Operation-Id", required = false) String operationId,
+            HttpServletRequest httpRequest
+    ) {
+        ClickHouseFormat clickHouseFormat = switch (format) {
+            case "JSONEachRow", "ndjson" -> ClickHouseFormat.JSONEachRow;
+            case "JSONCompactEachRow" -> ClickHouseFormat.JSONCompactEachRow;
+            default -> throw new IllegalArgumentException("Unsupported stream format: " + format);
+        };
+
+        // Validating the query up front, a 400 is no longer possible once the body has started
+        ClickHouseService.buildSelectQuery(request);
+        ClickHouseService.buildQuerySettings(request);
+
+        AdmissionService.Ticket ticket = admissionService.admit(request.getConnection(), AdmissionService.JobKind.STREAM);
+        closeWhenAsyncEnds(httpRequest, ticket);
+        IngestionService ingestionService;
+        ProgressService.Operation operation;
+        try {
+            // A consumer reading rows as they come is interactive traffic, it is not throttled
+            ingestionService = new IngestionService(new ClickHouseService(request.getConnection()), bandwidthService,
+                    BandwidthService.TrafficClass.INTERACTIVE);
+
+            // Closed by the body, or when the async request ends without it
+            operation = progressService.start(request.getConnection(), operationId, "stream", 0);
+            closeWhenAsyncEnds(httpRequest, operation);
+            ingestionService.track(operation);
+        } catch (RuntimeException e) {
+            ticket.close();
+            throw e;
+        }
+
+        StreamingResponseBody body = outputStream -> {
+            try (ticket; operation) {
+                ingestionService.streamRows(request, clickHouseFormat, outputStream);
+                operation.succeeded();
+            } catch (IOException e) {
+                // Usually the client went away, the query would otherwise keep producing rows
+                operation.cancel("Stream aborted: " + e.getMessage());
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Streaming failed: " + e.getMessage(), e);
             }
         };
+
+        return ResponseEntity.ok()
+                .header(HttpHeaders.ACCESS_CONTROL_EXPOSE_HEADERS, "X-Operation-Id")
+                .header("X-Operation-Id", operation.getId())
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .body(body);
+    }
+
+    /**
+     * Serves an already materialized export. Resumed downloads use this with a Range header
+     * and never reach ClickHouse. The id is the random X-Export-Id of a download that ran with
+     * valid credentials, it cannot be derived from the query.
+     */
+    @GetMapping("/exports/{id}")
+    public void downloadExport(
+            @PathVariable("id") String id,
+            @RequestParam(value = "name", defaultValue = "export") String name,
+            HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse
+    ) throws IOException {
+        try (var lease = exportCacheService.get(id)
+                .orElseThrow(() -> new NotFoundException("Export " + id + " is no longer available"))) {
+            writeArtifact(lease.getArtifact(), name, httpRequest, httpResponse);
+        }
+    }
+
+    private void writeArtifact(
+            ExportArtifact artifact,
+            String tableName,
+            HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse
+    ) throws IOException {
+        writeArtifact(artifact, tableName, httpRequest, httpResponse, true);
+    }
+
+    /**
+     * @param sendfile whether the container may send the file after this returns. Without it the
+     *                 file is written before returning, for callers that act once it was served.
+     */
+    private void writeArtifact(
+            ExportArtifact artifact,
+            String tableName,
+            HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse,
+            boolean sendfile
+    ) throws IOException {
+        String cleanFilename = tableName.replaceAll("[^a-zA-Z0-9-_]", "_") + ".csv";
+
+        httpResponse.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + cleanFilename);
+        httpResponse.setHeader(HttpHeaders.ACCESS_CONTROL_EXPOSE_HEADERS,
+                "Content-Disposition, Content-Length, Content-Range, Accept-Ranges, ETag, X-Line-Count, X-Export-Id, "
+                        + "X-Watermark, X-Previous-Watermark, X-Operation-Id");
+        httpResponse.setHeader("X-Line-Count", String.valueOf(artifact.getLineCount()));
+        httpResponse.setHeader("X-Export-Id", artifact.getId());
+
+        BandwidthService.Job bandwidth = bandwidthService.newJob(BandwidthService.TrafficClass.BULK);
+        RangeFileWriter.write(httpRequest, httpResponse, artifact.getPath(), artifact.getEtag(), "text/csv",
+                bandwidth.isThrottled() || !sendfile ? bandwidth::throttle : null);
     }
 
     @PostMapping(value = "/upload", consumes = {"multipart/form-data"})
     public ResponseEntity<Map<String, Object>> ingestFromFile(
             @RequestPart("file") MultipartFile file,
-            @RequestPart("config") String configJson
+            @RequestPart("config") String configJson,
+            @RequestHeader(value = "X-Operation-Id", required = false) String operationId
     ) {
         Map<String, Object> response = new HashMap<>();
         try {
@@ -165,22 +440,41 @@ public class IngestionController {
             ObjectMapper mapper = new ObjectMapper();
             UploadConfig request = mapper.readValue(configJson, UploadConfig.class);
 
-            // Setting up services
-            ClickHouseService clickHouseService = new ClickHouseService(request.getConnection());
-            IngestionService ingestionService = new IngestionService(clickHouseService);
+            long lines;
+            try (var _ = admissionService.admit(request.getConnection(), AdmissionService.JobKind.UPLOAD);
+                 var operation = progressService.start(request.getConnection(), operationId, "upload", file.getSize())) {
+                response.put("operationId", operation.getId());
 
-            if (request.isCreateNewTable())
-                clickHouseService.createTable(request.getTableName(), request.getColumnTypes());
+                // Setting up services
+                ClickHouseService clickHouseService = new ClickHouseService(request.getConnection());
+                IngestionService ingestionService = new IngestionService(clickHouseService, bandwidthService);
+                ingestionService.track(operation);
 
-            long lines;
-            // Ingest only selected columns from CSV stream
-            try (InputStream ingestionStream = file.getInputStream()) {
-                lines = ingestionService.ingestDataFromStream(
-                        request.getTotalCols(),
-                        request.getTableName(),
-                        new ArrayList<>(request.getColumnTypes().keySet()),
-                        request.getDelimiter(),
-                        ingestionStream);
+                if (request.isCreateNewTable())
+                    clickHouseService.createTable(request.getTableName(), request.getColumnTypes());
+
+                configureInserts(request, ingestionService, 1);
+                QuarantineService.Quarantine quarantine = startQuarantine(request, ingestionService);
+
+                // Ingest only selected columns from CSV stream
+                try (InputStream ingestionStream = file.getInputStream()) {
+                    IngestionService.StagedLoad load = target -> ingestionService.ingestDataFromStream(
+                            target.getTotalCols(),
+                            target.getTableName(),
+                            new ArrayList<>(target.getColumnTypes().keySet()),
+                            target.getDelimiter(),
+                            ingestionStream,
+                            Map.of(),
+                            file.getOriginalFilename());
+
+                    // A reload goes through a shadow table that is swapped in when complete
+                    lines = request.getReloadMode() != null
+                            ? ingestionService.reloadTable(request, load)
+                            : load.load(request);
+                    operation.succeeded();
+                } finally {
+                    finishQuarantine(quarantine, response);
+                }
             }
 
             response.put("lines", lines);
@@ -188,6 +482,147 @@ public class IngestionController {
             response.put("message", "Upload successful");
 
             return ResponseEntity.ok(response);
+        } catch (AdmissionRejectedException e) {
+            throw e;
+        } catch (Exception e) {
+            response.put("lines", 0);
+            response.put("success", false);
+            response.put("message", "Error: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+        }
+    }
+
+    @PostMapping(value = "/upload-bulk", consumes = {"multipart/form-data"})
+    public ResponseEntity<Map<String, Object>> ingestFromFiles(
+            @RequestPart("files") List<MultipartFile> files,
+            @RequestPart("config") String configJson,
+            @RequestHeader(value = "X-Operation-Id", required = false) String operationId
+    ) {
+        Map<String, Object> response = new HashMap<>();
+        Path archive = null;
+
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            UploadConfig request = mapper.readValue(configJson, UploadConfig.class);
+
+            int parallelism = request.getParallelism() == null
+                    ? maxBulkUploadParallelism
+                    : Math.clamp(request.getParallelism(), 1, maxBulkUploadParallelism);
+
+            List<FileIngestResult> results;
+            long totalBytes = files.stream().mapToLong(MultipartFile::getSize).sum();
+            try (var _ = admissionService.admit(request.getConnection(), AdmissionService.JobKind.UPLOAD, parallelism);
+                 var operation = progressService.start(request.getConnection(), operationId, "upload", totalBytes)) {
+                response.put("operationId", operation.getId());
+
+                // One client shared by every file of the batch
+                ClickHouseService clickHouseService = new ClickHouseService(request.getConnection());
+                IngestionService ingestionService = new IngestionService(clickHouseService, bandwidthService);
+                ingestionService.track(operation);
+
+                if (request.isCreateNewTable())
+                    clickHouseService.createTable(request.getTableName(), request.getColumnTypes());
+
+                configureInserts(request, ingestionService, parallelism);
+                QuarantineService.Quarantine quarantine = startQuarantine(request, ingestionService);
+                Map<String, IngestionService.StreamSource> sources = new LinkedHashMap<>();
+
+                try {
+                    if (files.size() == 1 && String.valueOf(files.getFirst().getOriginalFilename()).toLowerCase().endsWith(".zip")) {
+                        // ZipFile needs random access to hand out independent entry streams to each worker
+                        archive = Files.createTempFile("bulk_upload", ".zip");
+                        files.getFirst().transferTo(archive);
+
+                        try (ZipFile zip = new ZipFile(archive.toFile())) {
+                            zip.stream()
+                                    .filter(entry -> !entry.isDirectory())
+                                    // Resource forks that the macOS archiver adds next to every file
+                                    .filter(entry -> !entry.getName().startsWith("__MACOSX/"))
+                                    .forEach(entry -> addSource(sources, entry.getName(), () -> zip.getInputStream(entry)));
+
+                            results = ingestionService.ingestFiles(sources, request, parallelism);
+                        }
+                    } else {
+                        for (MultipartFile file : files)
+                            addSource(sources, String.valueOf(file.getOriginalFilename()), file::getInputStream);
+
+                        results = ingestionService.ingestFiles(sources, request, parallelism);
+                    }
+                    if (results.stream().allMatch(FileIngestResult::isSuccess))
+                        operation.succeeded();
+                } finally {
+                    finishQuarantine(quarantine, response);
+                }
+            }
+
+            response.put("lines", results.stream().mapToLong(FileIngestResult::getLines).sum());
+            response.put("success", results.stream().allMatch(FileIngestResult::isSuccess));
+            response.put("files", results);
+            response.put("message", "Uploaded " + results.stream().filter(FileIngestResult::isSuccess).count()
+                    + " of " + results.size() + " files");
+
+            return ResponseEntity.ok(response);
+        } catch (AdmissionRejectedException e) {
+            throw e;
+        } catch (Exception e) {
+            response.put("lines", 0);
+            response.put("success", false);
+            response.put("message", "Error: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+        } finally {
+            if (archive != null) {
+                try { Files.deleteIfExists(archive); }
+                catch (IOException _) {}
+            }
+        }
+    }
+
+    @PostMapping("/upload-local")
+    public ResponseEntity<Map<String, Object>> ingestFromLocalFile(
+            @RequestBody UploadConfig request,
+            @RequestHeader(value = "X-Operation-Id", required = false) String operationId
+    ) throws IOException {
+        // Path problems are the caller's fault and are reported as 400 before anything starts
+        Path file = fileService.resolveLocalPath(request.getLocalPath());
+        if (!Files.isRegularFile(file))
+            throw new IllegalArgumentException("Local path is not a file: " + request.getLocalPath());
+
+        int parallelism = request.getParallelism() == null
+                ? maxBulkUploadParallelism
+                : Math.clamp(request.getParallelism(), 1, maxBulkUploadParallelism);
+
+        Map<String, Object> response = new HashMap<>();
+        try (var _ = admissionService.admit(request.getConnection(), AdmissionService.JobKind.UPLOAD, parallelism);
+             var operation = progressService.start(request.getConnection(), operationId, "upload", Files.size(file))) {
+            response.put("operationId", operation.getId());
+
+            ClickHouseService clickHouseService = new ClickHouseService(request.getConnection());
+            IngestionService ingestionService = new IngestionService(clickHouseService, bandwidthService);
+            ingestionService.track(operation);
+
+            if (request.isCreateNewTable())
+                clickHouseService.createTable(request.getTableName(), request.getColumnTypes());
+
+            configureInserts(request, ingestionService, parallelism);
+            QuarantineService.Quarantine quarantine = startQuarantine(request, ingestionService);
+            List<FileIngestResult> results;
+            try {
+                results = ingestionService.ingestLocalFile(file, request, parallelism);
+            } finally {
+                finishQuarantine(quarantine, response);
+            }
+            boolean success = results.stream().allMatch(FileIngestResult::isSuccess);
+            if (success)
+                operation.succeeded();
+
+            response.put("lines", results.stream().mapToLong(FileIngestResult::getLines).sum());
+            response.put("success", success);
+            response.put("ranges", results);
+            response.put("message", success ? "Upload successful" : "Some ranges failed, see ranges for details");
+
+            return ResponseEntity.status(success ? HttpStatus.OK : HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+        } catch (AdmissionRejectedException e) {
+            throw e;
         } catch (Exception e) {
             response.put("lines", 0);
             response.put("success", false);
@@ -196,6 +631,148 @@ public class IngestionController {
         }
     }
 
+    @PostMapping("/watch")
+    public ResponseEntity<WatchStatus> watchDirectory(@RequestBody UploadConfig request) throws Exception {
+        Path directory = fileService.resolveLocalPath(request.getLocalPath());
+        if (!Files.isDirectory(directory))
+            throw new IllegalArgumentException("Local path is not a directory: " + request.getLocalPath());
+        if (request.getReloadMode() != null)
+            throw new IllegalArgumentException("A watched directory only appends, reloadMode is not supported");
+
+        if (request.isCreateNewTable())
+            new ClickHouseService(request.getConnection()).createTable(request.getTableName(), request.getColumnTypes(),
+                    DirectoryWatchService.TABLE_SETTINGS);
+
+        return ResponseEntity.ok(directoryWatchService.register(directory, request));
+    }
+
+    @GetMapping("/watch")
+    public ResponseEntity<List<WatchStatus>> getWatches() {
+        return ResponseEntity.ok(directoryWatchService.getWatches());
+    }
+
+    @DeleteMapping("/watch/{id}")
+    public ResponseEntity<Void> unwatchDirectory(@PathVariable String id) {
+        directoryWatchService.unregister(id);
+        return ResponseEntity.noContent().build();
+    }
+
+    @GetMapping("/quarantine/{id}")
+    public void downloadQuarantine(
+            @PathVariable("id") String id,
+            HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse
+    ) throws IOException {
+        Path file = quarantineService.get(id);
+
+        httpResponse.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=rejected_rows.csv");
+        RangeFileWriter.write(httpRequest, httpResponse, file, "\"" + id + "\"", "text/csv");
+    }
+
+    /**
+     * Enables the optional stages between parsing and inserting that the upload asked for. The
+     * memory limits are per upload, each of its {@code parallelism} streams gets an equal share.
+     */
+    private void configureInserts(UploadConfig request, IngestionService ingestionService, int parallelism) {
+        if (request.isPresort())
+            ingestionService.setPresort(request, presortRunSize.toBytes() / parallelism);
+        if (request.isPartitionRouting())
+            ingestionService.setPartitionRouting(request, partitionBufferSize.toBytes() / parallelism);
+    }
+
+    /**
+     * Sets up the quarantine for a tolerant upload, null when the upload is not tolerant.
+     */
+    private QuarantineService.Quarantine startQuarantine(UploadConfig request, IngestionService ingestionService) throws IOException {
+        if (!request.isTolerant())
+            return null;
+
+        QuarantineService.Quarantine quarantine = quarantineService.create(new ArrayList<>(request.getColumnTypes().keySet()));
+        ingestionService.setErrorTolerance(request, quarantine);
+        return quarantine;
+    }
+
+    /**
+     * Adds the rejected row counts and, when rows were rejected, the quarantine id to the
+     * response. "serverRejected" are rows the server skipped, they are not in the quarantine.
+     * Also runs for failed uploads, the rejects explain why a limit was exceeded.
+     */
+    private void finishQuarantine(QuarantineService.Quarantine quarantine, Map<String, Object> response) throws IOException {
+        if (quarantine == null)
+            return;
+
+        response.put("rejected", quarantine.getRows());
+        response.put("serverRejected", quarantine.getServerRows());
+        if (quarantineService.finish(quarantine))
+            response.put("quarantineId", quarantine.getId());
+    }
+
+    /**
+     * Closes the resources when the async request of a StreamingResponseBody ends, also when it
+     * timed out, failed or was never handed to the body. Closing them again is harmless.
+     */
+    private static void closeWhenAsyncEnds(HttpServletRequest httpRequest, AutoCloseable... resources) {
+        WebAsyncUtils.getAsyncManager(httpRequest).registerCallableInterceptor(resources, new CallableProcessingInterceptor() {
+            @Override
+            public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) throws Exception {
+                for (AutoCloseable resource : resources)
+                    resource.close();
+            }
+        });
+    }
+
+    /**
+     * Adds a file under its name, or under "name (2)", "name (3)", ... when another file of the
+     * batch already has it, so no file silently replaces another one.
+     */
+    private static void addSource(
+            Map<String, IngestionService.StreamSource> sources,
+            String name,
+            IngestionService.StreamSource source
+    ) {
+        String unique = name;
+        for (int i = 2; sources.containsKey(unique); i++)
+            unique = name + " (" + i + ")";
+
+        sources.put(unique, source);
+    }
+
+    /**
+     * Live progress of the operation started with the same X-Operation-Id header, as
+     * Server-Sent Events. May be opened before the operation itself is started. Operations
+     * belong to the connection that started them, the same connection has to be sent here.
+     */
+    @PostMapping(value = "/progress/{id}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamProgress(@PathVariable("id") String id, @RequestBody ConnectionConfig connection) {
+        return progressService.subscribe(connection, id);
+    }
+
+    /**
+     * Running operations of this connection and the ones that finished within
+     * config.progress.retention.
+     */
+    @PostMapping("/operations")
+    public ResponseEntity<List<Map<String, Object>>> getOperations(@RequestBody ConnectionConfig connection) {
+        return ResponseEntity.ok(progressService.list(connection));
+    }
+
+    /**
+     * Kills the ClickHouse queries of a running operation of this connection. Its request
+     * fails shortly after and the operation ends as CANCELLED.
+     */
+    @PostMapping("/operations/{id}/cancel")
+    public ResponseEntity<Map<String, Object>> cancelOperation(
+            @PathVariable("id") String id,
+            @RequestBody ConnectionConfig connection
+    ) {
+        return ResponseEntity.accepted().body(progressService.cancel(connection, id));
+    }
+
+    @GetMapping("/admission")
+    public ResponseEntity<Map<String, Object>> getAdmissionStats() {
+        return ResponseEntity.ok(admissionService.getStats());
+    }
+
     @PostMapping("/types")
     public ResponseEntity<Map<String, ArrayList<String>>>  getTypes(@RequestBody TypesConfig typesConfig) {
         ClickHouseService clickHouseService = new ClickHouseService(typesConfig.getConnection());
@@ -0,0 +1,77 @@
+package org.example.bidirectional.model;
+
+import java.nio.file.Path;
+
+/**
+ * An export that has been fully written to disk and can be served again without querying
+ * ClickHouse, as long as the tables it was built from have not changed since.
+ */
+public class ExportArtifact {
+    private String id;
+    private Path path;
+    private long size;
+    private long lineCount; // CSV records including the header, a quoted line break is not counted
+    private String version;
+    private String etag;
+
+    // Constructors
+    public ExportArtifact() {}
+
+    public ExportArtifact(String id, Path path, long size, long lineCount, String version, String etag) {
+        this.id = id;
+        this.path = path;
+        this.size = size;
+        this.lineCount = lineCount;
+        this.version = version;
+        this.etag = etag;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public void setPath(Path path) {
+        this.path = path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    public void setLineCount(long lineCount) {
+        this.lineCount = lineCount;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+}
@@ -0,0 +1,70 @@
+package org.example.bidirectional.model;
+
+import java.util.List;
+
+public class ExportEstimate {
+    private long rows;
+    private long parts;
+    private long marks;
+    private long uncompressedBytes;
+    private long compressedBytes;
+    private List<TableEstimate> tables;
+    private List<String> pipeline;
+
+    // Getters and Setters
+    public long getRows() {
+        return rows;
+    }
+
+    public void setRows(long rows) {
+        this.rows = rows;
+    }
+
+    public long getParts() {
+        return parts;
+    }
+
+    public void setParts(long parts) {
+        this.parts = parts;
+    }
+
+    public long getMarks() {
+        return marks;
+    }
+
+    public void setMarks(long marks) {
+        this.marks = marks;
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    public void setUncompressedBytes(long uncompressedBytes) {
+        this.uncompressedBytes = uncompressedBytes;
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    public void setCompressedBytes(long compressedBytes) {
+        this.compressedBytes = compressedBytes;
+    }
+
+    public List<TableEstimate> getTables() {
+        return tables;
+    }
+
+    public void setTables(List<TableEstimate> tables) {
+        this.tables = tables;
+    }
+
+    public List<String> getPipeline() {
+        return pipeline;
+    }
+
+    public void setPipeline(List<String> pipeline) {
+        this.pipeline = pipeline;
+    }
+}
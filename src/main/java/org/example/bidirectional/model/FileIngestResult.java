@@ -0,0 +1,51 @@
+package org.example.bidirectional.model;
+
+public class FileIngestResult {
+    private String fileName;
+    private long lines;
+    private boolean success;
+    private String message;
+
+    // Constructors
+    public FileIngestResult() {}
+
+    public FileIngestResult(String fileName, long lines, boolean success, String message) {
+        this.fileName = fileName;
+        this.lines = lines;
+        this.success = success;
+        this.message = message;
+    }
+
+    // Getters and Setters
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public void setLines(long lines) {
+        this.lines = lines;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
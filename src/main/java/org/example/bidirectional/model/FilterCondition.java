@@ -0,0 +1,56 @@
+package org.example.bidirectional.model;
+
+import java.util.List;
+
+/**
+ * A single structured WHERE predicate. Columns are quoted as identifiers and every value is
+ * sent as an escaped string literal, so nothing from the request is pasted into the SQL as is.
+ */
+public class FilterCondition {
+    private String column;
+    private String operator;
+    private String value;
+    private List<String> values;
+
+    // Constructors
+    public FilterCondition() {}
+
+    public FilterCondition(String column, String operator, String value) {
+        this.column = column;
+        this.operator = operator;
+        this.value = value;
+    }
+
+    // Getters and Setters
+    public String getColumn() {
+        return column;
+    }
+
+    public void setColumn(String column) {
+        this.column = column;
+    }
+
+    public String getOperator() {
+        return operator;
+    }
+
+    public void setOperator(String operator) {
+        this.operator = operator;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+
+    public void setValues(List<String> values) {
+        this.values = values;
+    }
+}
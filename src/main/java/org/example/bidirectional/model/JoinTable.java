@@ -1,9 +1,13 @@
 package org.example.bidirectional.model;
 
+import java.util.List;
+
 public class JoinTable {
     private String tableName;
     private String joinType;
     private String joinCondition;
+    private List<FilterCondition> filters;  // Applied inside the right-side subquery
+    private boolean pushDownColumns = false; // Read only the referenced columns of the right side
 
     // Getters and Setters
     public String getTableName() {
@@ -29,4 +33,20 @@ public class JoinTable {
     public void setJoinCondition(String joinCondition) {
         this.joinCondition = joinCondition;
     }
+
+    public List<FilterCondition> getFilters() {
+        return filters;
+    }
+
+    public void setFilters(List<FilterCondition> filters) {
+        this.filters = filters;
+    }
+
+    public boolean isPushDownColumns() {
+        return pushDownColumns;
+    }
+
+    public void setPushDownColumns(boolean pushDownColumns) {
+        this.pushDownColumns = pushDownColumns;
+    }
 }
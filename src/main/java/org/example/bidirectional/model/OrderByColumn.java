@@ -0,0 +1,31 @@
+package org.example.bidirectional.model;
+
+public class OrderByColumn {
+    private String column;
+    private String direction = "ASC";
+
+    // Constructors
+    public OrderByColumn() {}
+
+    public OrderByColumn(String column, String direction) {
+        this.column = column;
+        setDirection(direction);
+    }
+
+    // Getters and Setters
+    public String getColumn() {
+        return column;
+    }
+
+    public void setColumn(String column) {
+        this.column = column;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public void setDirection(String direction) {
+        this.direction = direction == null ? "ASC" : direction.toUpperCase();
+    }
+}
@@ -0,0 +1,61 @@
+package org.example.bidirectional.model;
+
+public class TableEstimate {
+    private String database;
+    private String table;
+    private long parts;
+    private long rows;
+    private long marks;
+
+    // Constructors
+    public TableEstimate() {}
+
+    public TableEstimate(String database, String table, long parts, long rows, long marks) {
+        this.database = database;
+        this.table = table;
+        this.parts = parts;
+        this.rows = rows;
+        this.marks = marks;
+    }
+
+    // Getters and Setters
+    public String getDatabase() {
+        return database;
+    }
+
+    public void setDatabase(String database) {
+        this.database = database;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public void setTable(String table) {
+        this.table = table;
+    }
+
+    public long getParts() {
+        return parts;
+    }
+
+    public void setParts(long parts) {
+        this.parts = parts;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public void setRows(long rows) {
+        this.rows = rows;
+    }
+
+    public long getMarks() {
+        return marks;
+    }
+
+    public void setMarks(long marks) {
+        this.marks = marks;
+    }
+}
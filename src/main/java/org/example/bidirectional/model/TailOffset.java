@@ -0,0 +1,64 @@
+package org.example.bidirectional.model;
+
+/**
+ * How far a tailed file has been ingested. {@code pendingEnd} is written before a batch is sent
+ * and cleared after it succeeded, so after a crash exactly the same byte range is replayed with
+ * the same deduplication token. {@code generation} counts the times the file was replaced or
+ * truncated and is part of the token, so new content at old offsets is not deduplicated away.
+ */
+public class TailOffset {
+    private String fileKey;
+    private String fingerprint; // Hash of the header and first record, null until that record is complete
+    private long generation;
+    private long offset;
+    private Long pendingEnd;
+
+    // Constructors
+    public TailOffset() {}
+
+    public TailOffset(String fileKey, long offset) {
+        this.fileKey = fileKey;
+        this.offset = offset;
+    }
+
+    // Getters and Setters
+    public String getFileKey() {
+        return fileKey;
+    }
+
+    public void setFileKey(String fileKey) {
+        this.fileKey = fileKey;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public Long getPendingEnd() {
+        return pendingEnd;
+    }
+
+    public void setPendingEnd(Long pendingEnd) {
+        this.pendingEnd = pendingEnd;
+    }
+}
@@ -0,0 +1,82 @@
+package org.example.bidirectional.model;
+
+public class WatchStatus {
+    private String id;
+    private String directory;
+    private String filePattern;
+    private String tableName;
+    private long batches;
+    private long lines;
+    private String lastError;
+
+    // Constructors
+    public WatchStatus() {}
+
+    public WatchStatus(String id, String directory, String filePattern, String tableName,
+                       long batches, long lines, String lastError) {
+        this.id = id;
+        this.directory = directory;
+        this.filePattern = filePattern;
+        this.tableName = tableName;
+        this.batches = batches;
+        this.lines = lines;
+        this.lastError = lastError;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public String getFilePattern() {
+        return filePattern;
+    }
+
+    public void setFilePattern(String filePattern) {
+        this.filePattern = filePattern;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public void setBatches(long batches) {
+        this.batches = batches;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public void setLines(long lines) {
+        this.lines = lines;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+}
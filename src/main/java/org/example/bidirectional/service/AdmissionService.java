@@ -0,0 +1,264 @@
+package org.example.bidirectional.service;
+
+import jakarta.annotation.PostConstruct;
+import org.example.bidirectional.config.ConnectionConfig;
+import org.example.bidirectional.exception.AdmissionRejectedException;
+import org.example.bidirectional.util.TransferMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many uploads and exports run at once, globally and per ClickHouse host. A job
+ * takes {@code weight} slots (its parallelism) and reserves job-memory per slot. Jobs that do
+ * not fit wait in a bounded FIFO queue; when the queue is full or the wait times out the
+ * request is rejected with 429 and a Retry-After hint instead of piling up.
+ */
+@Service
+public class AdmissionService {
+    public enum JobKind { UPLOAD, EXPORT, STREAM }
+
+    @Value("${config.admission.max-jobs}")
+    private int maxJobs;
+
+    @Value("${config.admission.max-jobs-per-host}")
+    private int maxJobsPerHost;
+
+    @Value("${config.admission.memory-budget}")
+    private DataSize memoryBudget;
+
+    @Value("${config.admission.job-memory}")
+    private DataSize jobMemory;
+
+    @Value("${config.admission.min-free-disk}")
+    private DataSize minFreeDisk;
+
+    @Value("${config.admission.max-queue}")
+    private int maxQueue;
+
+    @Value("${config.admission.queue-timeout}")
+    private Duration queueTimeout;
+
+    @Value("${config.admission.retry-after}")
+    private Duration retryAfter;
+
+    @Value("${config.export.cache-dir}")
+    private Path exportDir;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private final Map<String, Integer> hostSlots = new HashMap<>();
+    private int activeSlots = 0;
+    private long reservedMemory = 0;
+
+    private long admitted = 0;
+    private long rejected = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+
+    @PostConstruct
+    public void registerMetrics() {
+        TransferMetrics.gauge("bidirectional.jobs.active", this, AdmissionService::getActiveJobs);
+        TransferMetrics.gauge("bidirectional.jobs.queued", this, AdmissionService::getQueuedJobs);
+    }
+
+    private static class Waiter {
+        final String host;
+        final int weight;
+
+        Waiter(String host, int weight) {
+            this.host = host;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Released when the job is finished, closing it more than once is harmless.
+     */
+    public class Ticket implements AutoCloseable {
+        private final String host;
+        private final int weight;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Ticket(String host, int weight) {
+            this.host = host;
+            this.weight = weight;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true))
+                release(host, weight);
+        }
+    }
+
+    public static String hostKey(ConnectionConfig connection) {
+        return connection.getHost() + ":" + connection.getPort();
+    }
+
+    public Ticket admit(ConnectionConfig connection, JobKind kind) {
+        return admit(connection, kind, 1);
+    }
+
+    public Ticket admit(ConnectionConfig connection, JobKind kind, int weight) {
+        String host = hostKey(connection);
+        // A job wider than the limits could never start, so it runs at the limit instead
+        int slots = Math.clamp(weight, 1, Math.min(maxJobs, maxJobsPerHost));
+
+        if (kind == JobKind.EXPORT && freeDisk() < minFreeDisk.toBytes())
+            throw reject("Not enough free disk space for exports, try again later");
+
+        long startedWaiting = System.nanoTime();
+        lock.lock();
+        try {
+            Waiter waiter = new Waiter(host, slots);
+
+            if (queue.isEmpty() && fits(waiter))
+                return grant(waiter, startedWaiting);
+
+            if (queue.size() >= maxQueue)
+                throw reject("Too many jobs are queued, try again later");
+
+            queue.addLast(waiter);
+            try {
+                long remaining = queueTimeout.toNanos();
+                while (!canProceed(waiter)) {
+                    if (remaining <= 0)
+                        throw reject("Timed out waiting for a free job slot, try again later");
+
+                    remaining = changed.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw reject("Interrupted while waiting for a free job slot");
+            } finally {
+                queue.remove(waiter);
+                changed.signalAll();
+            }
+
+            return grant(waiter, startedWaiting);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fitsGlobally(Waiter w) {
+        return activeSlots + w.weight <= maxJobs
+                && reservedMemory + w.weight * jobMemory.toBytes() <= memoryBudget.toBytes();
+    }
+
+    private boolean fits(Waiter w) {
+        return fitsGlobally(w) && hostSlots.getOrDefault(w.host, 0) + w.weight <= maxJobsPerHost;
+    }
+
+    /**
+     * FIFO, except that a waiter blocked only by its own host's limit does not hold back jobs
+     * for other hosts. Anything waiting for global capacity keeps its place in line.
+     */
+    private boolean canProceed(Waiter w) {
+        for (Waiter earlier : queue) {
+            if (earlier == w)
+                return fits(w);
+
+            if (!fitsGlobally(earlier))
+                return false;
+        }
+
+        return false;
+    }
+
+    private Ticket grant(Waiter w, long startedWaiting) {
+        activeSlots += w.weight;
+        reservedMemory += w.weight * jobMemory.toBytes();
+        hostSlots.merge(w.host, w.weight, Integer::sum);
+
+        long waited = System.nanoTime() - startedWaiting;
+        admitted++;
+        totalWaitNanos += waited;
+        maxWaitNanos = Math.max(maxWaitNanos, waited);
+
+        return new Ticket(w.host, w.weight);
+    }
+
+    private void release(String host, int weight) {
+        lock.lock();
+        try {
+            activeSlots -= weight;
+            reservedMemory -= weight * jobMemory.toBytes();
+            hostSlots.computeIfPresent(host, (h, n) -> n - weight > 0 ? n - weight : null);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private AdmissionRejectedException reject(String message) {
+        lock.lock();
+        try {
+            rejected++;
+        } finally {
+            lock.unlock();
+        }
+
+        return new AdmissionRejectedException(message, Math.max(1, retryAfter.toSeconds()));
+    }
+
+    private long freeDisk() {
+        try {
+            return Files.getFileStore(exportDir).getUsableSpace();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    public int getActiveJobs() {
+        lock.lock();
+        try {
+            return activeSlots;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueuedJobs() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        lock.lock();
+        try {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("activeJobs", activeSlots);
+            stats.put("maxJobs", maxJobs);
+            stats.put("queuedJobs", queue.size());
+            stats.put("maxQueue", maxQueue);
+            stats.put("reservedMemoryBytes", reservedMemory);
+            stats.put("memoryBudgetBytes", memoryBudget.toBytes());
+            stats.put("freeDiskBytes", freeDisk());
+            stats.put("activeJobsPerHost", new TreeMap<>(hostSlots));
+            stats.put("admitted", admitted);
+            stats.put("rejected", rejected);
+            stats.put("averageWaitMs", admitted == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / admitted));
+            stats.put("maxWaitMs", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.example.bidirectional.service;
+
+import org.example.bidirectional.util.ThrottledInputStream;
+import org.example.bidirectional.util.ThrottledOutputStream;
+import org.example.bidirectional.util.TokenBucket;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shapes the bandwidth of bulk transfers. Every bulk request is one job with its own bucket,
+ * shared by all of its streams, and also draws from one global bucket shared by all jobs.
+ * Interactive traffic (metadata, previews, row streams) is never throttled, so it does not
+ * queue behind a large export.
+ */
+@Service
+public class BandwidthService {
+    public enum TrafficClass { INTERACTIVE, BULK }
+
+    @Value("${config.bandwidth.job-bytes-per-second}")
+    private DataSize jobRate;
+
+    private final TokenBucket globalBucket;
+
+    public BandwidthService(@Value("${config.bandwidth.global-bytes-per-second}") DataSize globalRate) {
+        this.globalBucket = new TokenBucket(globalRate.toBytes());
+    }
+
+    /**
+     * Bandwidth of one request. Every stream it throttles takes from the same job bucket, so a
+     * request moving several files at once still gets the job rate in total.
+     */
+    public static class Job {
+        private final List<TokenBucket> buckets;
+
+        private Job(List<TokenBucket> buckets) {
+            this.buckets = buckets;
+        }
+
+        public boolean isThrottled() {
+            return !buckets.isEmpty();
+        }
+
+        public InputStream throttle(InputStream in) {
+            return buckets.isEmpty() ? in : new ThrottledInputStream(in, buckets);
+        }
+
+        public OutputStream throttle(OutputStream out) {
+            return buckets.isEmpty() ? out : new ThrottledOutputStream(out, buckets);
+        }
+    }
+
+    public Job newJob(TrafficClass trafficClass) {
+        List<TokenBucket> buckets = new ArrayList<>();
+        if (trafficClass == TrafficClass.INTERACTIVE)
+            return new Job(buckets);
+
+        TokenBucket job = new TokenBucket(jobRate.toBytes());
+        if (!job.isUnlimited())
+            buckets.add(job);
+        if (!globalBucket.isUnlimited())
+            buckets.add(globalBucket);
+
+        return new Job(buckets);
+    }
+}
@@ -5,19 +5,41 @@ import com.clickhouse.client.api.query.QueryResponse;
 import com.clickhouse.client.api.query.QuerySettings;
 import com.clickhouse.data.ClickHouseFormat;
 import com.opencsv.CSVReader;
+import io.micrometer.core.instrument.Timer;
 import org.example.bidirectional.config.ConnectionConfig;
+import org.example.bidirectional.config.SelectedColumnsQueryConfig;
 import org.example.bidirectional.exception.AuthenticationException;
-import org.example.bidirectional.model.ColumnInfo;
-import org.example.bidirectional.model.JoinTable;
+import org.example.bidirectional.model.*;
+import org.example.bidirectional.util.TransferMetrics;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
 import java.util.*;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ClickHouseService {
+    private static final long PREVIEW_ROWS = 100;
+    private static final Set<String> JOIN_ALGORITHMS = Set.of(
+            "default", "auto", "hash", "parallel_hash", "grace_hash", "partial_merge",
+            "full_sorting_merge", "prefer_partial_merge", "direct");
+
+    // table.column references inside raw join conditions, either part may be backquoted
+    private static final Pattern QUALIFIED_COLUMN = Pattern.compile(
+            "(?:`((?:[^`]|``)+)`|([A-Za-z_][A-Za-z0-9_]*))\\s*\\.\\s*(?:`((?:[^`]|``)+)`|([A-Za-z_][A-Za-z0-9_]*))");
+
+    private static final Pattern DEDUPLICATION_WINDOW = Pattern.compile(
+            "\\bnon_replicated_deduplication_window\\s*=\\s*(\\d+)");
+
     private final Client client;
     private final String database;
+
+    // Every query runs as <prefix>:<n>, so all queries of one request can be found and killed together
+    private volatile String queryIdPrefix = "bidirectional-" + UUID.randomUUID();
+    private final AtomicInteger queryCount = new AtomicInteger();
     private static ArrayList<String> types = null;
 
     public static char convertStringToChar(String input) {
@@ -70,8 +92,9 @@ public class ClickHouseService {
             } else {
                 throw new AuthenticationException("Invalid credentials or token.");
             }
+            TransferMetrics.countClientCreated();
 
-            if (!client.ping())
+            if (!ping())
                 throw new AuthenticationException("Invalid credentials or token.");
         } catch (Exception e) {
             if (e instanceof AuthenticationException) {
@@ -83,8 +106,35 @@ public class ClickHouseService {
         }
     }
 
+    /**
+     * Runs every following query under the given prefix, usually the id of the operation the
+     * service works for.
+     */
+    public void setQueryIdPrefix(String queryIdPrefix) {
+        this.queryIdPrefix = queryIdPrefix;
+    }
+
+    public String getQueryIdPrefix() {
+        return queryIdPrefix;
+    }
+
+    public String nextQueryId() {
+        return queryIdPrefix + ":" + queryCount.incrementAndGet();
+    }
+
+    // Monitoring and KILL statements must not match the prefix of the queries they look at
+    private static String adminQueryId() {
+        return "bidirectional-admin-" + UUID.randomUUID();
+    }
+
     public boolean testConnection() {
-        return client.ping();
+        return ping();
+    }
+
+    private boolean ping() {
+        boolean alive = client.ping();
+        TransferMetrics.countPing(alive);
+        return alive;
     }
 
     /**
@@ -95,7 +145,7 @@ public class ClickHouseService {
      * @return a list of strings from the first column of the result set
      */
     private List<String> getListFromResponse(String sqlQuery) {
-        QuerySettings settings = new QuerySettings().setFormat(ClickHouseFormat.CSV);
+        QuerySettings settings = new QuerySettings().setFormat(ClickHouseFormat.CSV).setQueryId(nextQueryId());
         Future<QueryResponse> response = client.query(sqlQuery, settings);
 
         try (QueryResponse qr = response.get();
@@ -114,19 +164,38 @@ public class ClickHouseService {
     }
 
     public long getTotalRows(String tableName) {
-        String query = "SELECT COUNT(*) FROM " + quote(tableName);
-        return Long.parseLong(getListFromResponse(query).getFirst());
+        Timer.Sample sample = TransferMetrics.start();
+        try {
+            String query = "SELECT COUNT(*) FROM " + quote(tableName);
+            return Long.parseLong(getListFromResponse(query).getFirst());
+        } finally {
+            TransferMetrics.recordQuery("getTotalRows", sample);
+        }
     }
 
     public List<String> listTables() {
-        return getListFromResponse("SHOW TABLES FROM " + database);
+        Timer.Sample sample = TransferMetrics.start();
+        try {
+            return getListFromResponse("SHOW TABLES FROM " + database);
+        } finally {
+            TransferMetrics.recordQuery("listTables", sample);
+        }
     }
 
     public List<ColumnInfo> getColumns(String tableName) {
+        Timer.Sample sample = TransferMetrics.start();
+        try {
+            return fetchColumns(tableName);
+        } finally {
+            TransferMetrics.recordQuery("getColumns", sample);
+        }
+    }
+
+    private List<ColumnInfo> fetchColumns(String tableName) {
         String sql = String.format("SELECT name, type FROM system.columns WHERE database = '%s' AND table = '%s';",
                 database, tableName);
 
-        QuerySettings settings = new QuerySettings().setFormat(ClickHouseFormat.CSV);
+        QuerySettings settings = new QuerySettings().setFormat(ClickHouseFormat.CSV).setQueryId(nextQueryId());
         Future<QueryResponse> response = client.query(sql, settings);
 
         try (QueryResponse qr = response.get();
@@ -144,6 +213,58 @@ public class ClickHouseService {
         }
     }
 
+    /**
+     * Fingerprint of the current state of the given tables built from their active parts. Any
+     * insert, merge, mutation or drop changes it. Returns null when one of the tables is not a
+     * MergeTree table, since there is then no cheap way to tell whether its data changed.
+     */
+    public String getTablesVersion(Collection<String> tableNames) {
+        Set<String> tables = new TreeSet<>(tableNames);
+        StringJoiner names = new StringJoiner(", ", "(", ")");
+        tables.forEach(t -> names.add(quoteLiteral(t)));
+
+        String mergeTrees = getListFromResponse("SELECT count() FROM system.tables WHERE database = "
+                + quoteLiteral(database) + " AND name IN " + names + " AND engine LIKE '%MergeTree'").getFirst();
+        if (Long.parseLong(mergeTrees) != tables.size())
+            return null;
+
+        String sql = "SELECT table, count(), sum(rows), max(modification_time), groupBitXor(cityHash64(name))"
+                + " FROM system.parts WHERE active AND database = " + quoteLiteral(database)
+                + " AND table IN " + names + " GROUP BY table ORDER BY table";
+
+        StringBuilder version = new StringBuilder();
+        for (String[] row : getRowsFromResponse(sql, Map.of()))
+            version.append(String.join(",", row)).append(';');
+
+        return version.toString();
+    }
+
+    /**
+     * Whether the table drops an insert whose insert_deduplication_token it has already seen.
+     * Replicated tables always do, other MergeTree tables only with a
+     * non_replicated_deduplication_window, set on the table or as the server default.
+     */
+    public boolean deduplicatesInserts(String tableName) {
+        List<String[]> rows = getRowsFromResponse("SELECT engine, engine_full FROM system.tables WHERE database = "
+                + quoteLiteral(database) + " AND name = " + quoteLiteral(tableName), Map.of());
+        if (rows.isEmpty())
+            throw new IllegalArgumentException("Table does not exist: " + tableName);
+
+        String engine = rows.getFirst()[0];
+        if (engine.startsWith("Replicated") || engine.startsWith("Shared"))
+            return true;
+        if (!engine.endsWith("MergeTree"))
+            return false;
+
+        Matcher window = DEDUPLICATION_WINDOW.matcher(rows.getFirst()[1]);
+        if (window.find())
+            return Long.parseLong(window.group(1)) > 0;
+
+        List<String> serverDefault = getListFromResponse(
+                "SELECT value FROM system.merge_tree_settings WHERE name = 'non_replicated_deduplication_window'");
+        return !serverDefault.isEmpty() && Long.parseLong(serverDefault.getFirst()) > 0;
+    }
+
     public ArrayList<String> getTypes() {
         if (types != null) {
             return types;
@@ -163,6 +284,13 @@ public class ClickHouseService {
     }
 
     public void createTable(String tableName, Map<String, String> types) throws Exception {
+        createTable(tableName, types, Map.of());
+    }
+
+    /**
+     * @param tableSettings MergeTree settings of the new table, e.g. non_replicated_deduplication_window
+     */
+    public void createTable(String tableName, Map<String, String> types, Map<String, String> tableSettings) throws Exception {
         // Construct a CREATE TABLE query based on the headers
         int i = types.size() - 1;
 
@@ -175,18 +303,181 @@ public class ClickHouseService {
 
             --i;
         }
-        createTableQuery.append(") ENGINE = MergeTree() ORDER BY tuple();");
+        createTableQuery.append(") ENGINE = MergeTree() ORDER BY tuple()");
+
+        StringJoiner settings = new StringJoiner(", ", " SETTINGS ", "").setEmptyValue("");
+        tableSettings.forEach((name, value) -> settings.add(name + " = " + value));
+        createTableQuery.append(settings).append(';');
 
         // Execute the CREATE TABLE query
-        client.query(createTableQuery.toString()).get();
+        execute(createTableQuery.toString());
+    }
+
+    private void execute(String sql) throws Exception {
+        execute(sql, nextQueryId());
+    }
+
+    private void execute(String sql, String queryId) throws Exception {
+        try (QueryResponse _ = client.query(sql, new QuerySettings().setQueryId(queryId)).get()) {
+            // Statements without a result set
+        }
+    }
+
+    /**
+     * Creates an empty copy of a table (columns, engine, sorting and partition key) under a
+     * unique name, used as the staging target of a reload.
+     */
+    public String createShadowTable(String tableName) throws Exception {
+        String shadow = tableName + "__reload_" + UUID.randomUUID().toString().substring(0, 8);
+        execute("CREATE TABLE " + quote(shadow) + " AS " + quote(tableName));
+        return shadow;
+    }
+
+    /**
+     * Swaps the names of two tables in one step. Needs an Atomic database, which is the default.
+     */
+    public void exchangeTables(String tableName, String otherTableName) throws Exception {
+        execute("EXCHANGE TABLES " + quote(tableName) + " AND " + quote(otherTableName));
+    }
+
+    public List<String> getPartitionIds(String tableName) {
+        return getListFromResponse("SELECT DISTINCT partition_id FROM system.parts WHERE active AND database = "
+                + quoteLiteral(database) + " AND table = " + quoteLiteral(tableName) + " ORDER BY partition_id");
+    }
+
+    /**
+     * Leading columns of the table's ORDER BY key, empty for ORDER BY tuple().
+     */
+    public List<String> getSortingKeyColumns(String tableName) {
+        List<String> keys = getListFromResponse("SELECT sorting_key FROM system.tables WHERE database = "
+                + quoteLiteral(database) + " AND name = " + quoteLiteral(tableName));
+        return keys.isEmpty() ? List.of() : sortingKeyColumns(keys.getFirst());
+    }
+
+    /**
+     * Keeps the parts of a sorting_key of system.tables up to the first one that is an
+     * expression (e.g. toDate(ts)) instead of a plain column, since only plain columns can be
+     * compared on the client.
+     */
+    static List<String> sortingKeyColumns(String sortingKey) {
+        List<String> columns = new ArrayList<>();
+        for (String part : splitTopLevel(sortingKey)) {
+            if (part.matches("[A-Za-z_][A-Za-z0-9_]*"))
+                columns.add(part);
+            else if (part.matches("`(?:[^`\\\\]|``|\\\\.)*`"))
+                columns.add(part.substring(1, part.length() - 1).replace("``", "`").replace("\\`", "`"));
+            else
+                break;
+        }
+        return columns;
+    }
+
+    /**
+     * The PARTITION BY expression of the table split into its parts, e.g. [tenant,
+     * toYYYYMM(ts)] for PARTITION BY (tenant, toYYYYMM(ts)). Empty when it is not partitioned.
+     */
+    public List<String> getPartitionKeyParts(String tableName) {
+        List<String> keys = getListFromResponse("SELECT partition_key FROM system.tables WHERE database = "
+                + quoteLiteral(database) + " AND name = " + quoteLiteral(tableName));
+        return keys.isEmpty() ? List.of() : partitionKeyParts(keys.getFirst());
+    }
+
+    static List<String> partitionKeyParts(String partitionKey) {
+        List<String> parts = splitTopLevel(partitionKey);
+        if (parts.size() == 1) {
+            String part = parts.getFirst();
+            if (part.equals("tuple()"))
+                return List.of();
+
+            if (isWrapped(part))
+                return splitTopLevel(part.substring(1, part.length() - 1));
+        }
+        return parts;
+    }
+
+    // Whether the first parenthesis closes at the very end, so not for (a + 1) * b
+    private static boolean isWrapped(String part) {
+        if (!part.startsWith("(") || !part.endsWith(")"))
+            return false;
+
+        int depth = 0;
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (c == '(')
+                depth++;
+            else if (c == ')' && --depth == 0)
+                return i == part.length() - 1;
+        }
+        return false;
+    }
+
+    /**
+     * Splits a comma separated expression list at the commas outside of parentheses and quotes.
+     */
+    private static List<String> splitTopLevel(String expression) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        int depth = 0;
+        char quote = 0;
+
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (quote != 0) {
+                if (c == '\\' && i + 1 < expression.length())
+                    part.append(c).append(expression.charAt(++i));
+                else {
+                    part.append(c);
+                    if (c == quote)
+                        quote = 0;
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '`', '\'', '"' -> quote = c;
+                case '(', '[' -> depth++;
+                case ')', ']' -> depth--;
+            }
+
+            if (c == ',' && depth == 0) {
+                parts.add(part.toString().trim());
+                part.setLength(0);
+            } else {
+                part.append(c);
+            }
+        }
+        if (!part.toString().isBlank())
+            parts.add(part.toString().trim());
+
+        return parts;
+    }
+
+    /**
+     * Replaces the given partitions of the target with the ones of the source, sent as one
+     * ALTER. Each partition is replaced atomically, but the ALTER as a whole is not: its
+     * commands run one after the other, so a reader can see some partitions already replaced
+     * and, if one fails, the ones before it stay replaced. A partition the source does not have
+     * ends up empty in the target.
+     */
+    public void replacePartitions(String tableName, String sourceTableName, Collection<String> partitionIds) throws Exception {
+        StringJoiner commands = new StringJoiner(", ");
+        for (String id : partitionIds)
+            commands.add("REPLACE PARTITION ID " + quoteLiteral(id) + " FROM " + quote(sourceTableName));
+
+        execute("ALTER TABLE " + quote(tableName) + " " + commands);
+    }
+
+    public void dropTable(String tableName) throws Exception {
+        execute("DROP TABLE IF EXISTS " + quote(tableName) + " SYNC");
     }
 
     /**
      * Fetches data from ClickHouse using the provided SQL query and
      * returns the result as a list of String arrays.
      */
-    private List<String[]> fetchDataHelper(String sql) throws Exception {
-        QuerySettings settings = new QuerySettings().setFormat(ClickHouseFormat.CSVWithNames);
+    private List<String[]> fetchDataHelper(String sql, Map<String, String> serverSettings) throws Exception {
+        QuerySettings settings = new QuerySettings().setFormat(ClickHouseFormat.CSVWithNames).setQueryId(nextQueryId());
+        serverSettings.forEach(settings::serverSetting);
 
         Future<QueryResponse> response = client.query(sql, settings);
 
@@ -197,38 +488,105 @@ public class ClickHouseService {
         }
     }
 
+    /**
+     * Same as {@link #getListFromResponse(String)} but keeps every column of each row.
+     */
+    private List<String[]> getRowsFromResponse(String sqlQuery, Map<String, String> serverSettings) {
+        return getRowsFromResponse(sqlQuery, serverSettings, nextQueryId());
+    }
+
+    private List<String[]> getRowsFromResponse(String sqlQuery, Map<String, String> serverSettings, String queryId) {
+        QuerySettings settings = new QuerySettings().setFormat(ClickHouseFormat.CSV).setQueryId(queryId);
+        serverSettings.forEach(settings::serverSetting);
+
+        Future<QueryResponse> response = client.query(sqlQuery, settings);
+
+        try (QueryResponse qr = response.get();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(qr.getInputStream()));
+             CSVReader csvReader = new CSVReader(reader)) {
+            return csvReader.readAll();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to fetch data from ClickHouse: " + e.getMessage(), e);
+        }
+    }
+
     protected static String quote(String name) {
         return "`" + name.replace("`", "``") + "`";
     }
 
+    /**
+     * Quotes a value as a ClickHouse string literal. ClickHouse converts string literals to the
+     * column type on comparison, so every filter value can safely go through here.
+     */
+    protected static String quoteLiteral(String value) {
+        if (value == null)
+            throw new IllegalArgumentException("Filter value must not be null");
+
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    /**
+     * Quotes a column reference. Columns written as {@code table.column} keep their table,
+     * anything else is qualified with the main table.
+     */
+    protected static String quoteColumn(String tableName, String column) {
+        if (column == null || column.isBlank())
+            throw new IllegalArgumentException("Column name must not be empty");
+
+        if (column.contains(".")) {
+            String[] parts = column.split("\\.", 2);
+            return quote(parts[0]) + "." + quote(parts[1]);
+        }
+
+        return quote(tableName) + "." + quote(column);
+    }
+
     /**
      * Builds the query with proper joins. THe query is joined as a complete default should add
      * condition to the string (if you want) before executing
      */
     public String getJoinedQuery(String tableName, List<String> columns, List<JoinTable> joins) {
+        return buildJoinedQuery(tableName, columns, joins, null, List.of(), null);
+    }
+
+    private static String buildJoinedQuery(
+            String tableName,
+            List<String> columns,
+            List<JoinTable> joins,
+            Double sampleRatio,
+            List<String> outerColumns,
+            String selectList
+    ) {
         // Build the SQL query string
         StringBuilder queryBuilder = new StringBuilder();
         queryBuilder.append("SELECT ");
-        for (int i = 0; i < columns.size(); i++) {
-            if (columns.get(i).contains(".")) {
-                String[] column = columns.get(i).split("\\.");
-                queryBuilder.append(quote(column[0]));
-                queryBuilder.append(".");
-                queryBuilder.append(quote(column[1]));
-            } else {
-                queryBuilder.append(quote(tableName)).append('.');
-                queryBuilder.append(quote(columns.get(i)));
+        if (selectList != null) {
+            queryBuilder.append(selectList);
+        } else {
+            for (int i = 0; i < columns.size(); i++) {
+                queryBuilder.append(quoteColumn(tableName, columns.get(i)));
+
+                if (i < columns.size() - 1) queryBuilder.append(',');
             }
+        }
+        queryBuilder.append(" FROM ").append(quote(tableName));
 
-            if (i < columns.size() - 1) queryBuilder.append(',');
+        // SAMPLE belongs to the table expression, so it has to come before any JOIN
+        if (sampleRatio != null) {
+            if (sampleRatio <= 0 || sampleRatio > 1)
+                throw new IllegalArgumentException("Sample ratio must be in (0, 1]");
+
+            queryBuilder.append(" SAMPLE ").append(BigDecimal.valueOf(sampleRatio).toPlainString());
         }
-        queryBuilder.append(" FROM `").append(tableName).append('`');
 
         if (joins != null && !joins.isEmpty()) {
+            List<String> references = new ArrayList<>(columns);
+            references.addAll(outerColumns);
+
             for (JoinTable jt : joins) {
                 queryBuilder.append(" ")
                         .append(jt.getJoinType()).append(" ")
-                        .append(quote(jt.getTableName())).append(" ON ")
+                        .append(renderJoinSource(jt, joins, references)).append(" ON ")
                         .append(jt.getJoinCondition());
             }
         }
@@ -236,15 +594,359 @@ public class ClickHouseService {
         return queryBuilder.toString();
     }
 
-    public List<String[]> querySelectedColumns(
-            String tableName,
-            List<String> columns,
-            List<JoinTable> joins,
-            String delimiter
-    ) throws Exception {
-        String sql = getJoinedQuery(tableName, columns, joins);
+    /**
+     * Renders the right side of a join. Without filters or column push down this is the plain
+     * table, otherwise a subquery aliased to the table name so the join condition still resolves
+     * and ClickHouse only builds the hash table from the rows and columns that are needed.
+     */
+    private static String renderJoinSource(JoinTable jt, List<JoinTable> joins, List<String> references) {
+        boolean hasFilters = jt.getFilters() != null && !jt.getFilters().isEmpty();
+        if (!hasFilters && !jt.isPushDownColumns())
+            return quote(jt.getTableName());
+
+        String select = "*";
+        if (jt.isPushDownColumns()) {
+            Set<String> needed = new LinkedHashSet<>();
+
+            for (String ref : references) {
+                int dot = ref.indexOf('.');
+                if (dot > 0 && ref.substring(0, dot).equals(jt.getTableName()))
+                    needed.add(ref.substring(dot + 1));
+            }
+
+            for (JoinTable other : joins) {
+                if (other.getJoinCondition() == null) continue;
+
+                Matcher m = QUALIFIED_COLUMN.matcher(other.getJoinCondition());
+                while (m.find()) {
+                    String table = m.group(1) != null ? m.group(1).replace("``", "`") : m.group(2);
+                    String column = m.group(3) != null ? m.group(3).replace("``", "`") : m.group(4);
+
+                    if (table.equals(jt.getTableName()))
+                        needed.add(column);
+                }
+            }
+
+            if (!needed.isEmpty()) {
+                StringJoiner joiner = new StringJoiner(", ");
+                needed.forEach(c -> joiner.add(quote(c)));
+                select = joiner.toString();
+            }
+        }
+
+        StringBuilder sub = new StringBuilder("(SELECT ")
+                .append(select).append(" FROM ").append(quote(jt.getTableName()));
+
+        if (hasFilters) {
+            List<String> predicates = new ArrayList<>();
+            for (FilterCondition filter : jt.getFilters())
+                predicates.add(renderFilter(jt.getTableName(), filter));
+
+            sub.append(" WHERE ").append(String.join(" AND ", predicates));
+        }
+
+        return sub.append(") AS ").append(quote(jt.getTableName())).toString();
+    }
+
+    /**
+     * Server settings controlling how ClickHouse executes the joins of the export query.
+     */
+    public static Map<String, String> buildQuerySettings(SelectedColumnsQueryConfig config) {
+        Map<String, String> settings = new LinkedHashMap<>();
+
+        if (config.getJoinAlgorithm() != null && !config.getJoinAlgorithm().isBlank()) {
+            // ClickHouse accepts a comma separated list of algorithms to try in order
+            List<String> algorithms = new ArrayList<>();
+            for (String algorithm : config.getJoinAlgorithm().split(",")) {
+                String a = algorithm.trim().toLowerCase();
+                if (!JOIN_ALGORITHMS.contains(a))
+                    throw new IllegalArgumentException("Unsupported join algorithm: " + algorithm.trim());
+
+                algorithms.add(a);
+            }
+            settings.put("join_algorithm", String.join(",", algorithms));
+        }
+
+        if (config.getMaxBytesInJoin() != null) {
+            if (config.getMaxBytesInJoin() <= 0)
+                throw new IllegalArgumentException("max_bytes_in_join must be positive");
+
+            settings.put("max_bytes_in_join", String.valueOf(config.getMaxBytesInJoin()));
+        }
+
+        return settings;
+    }
+
+    /**
+     * Builds the complete export query for the given config: joins, sampling, filters, partition
+     * filters, ordering and limit/offset are all pushed down to ClickHouse.
+     */
+    public static String buildSelectQuery(SelectedColumnsQueryConfig config) {
+        return buildSelectQuery(config, null);
+    }
+
+    /**
+     * @param selectList replaces the selected columns, e.g. with aggregates over the same rows
+     */
+    private static String buildSelectQuery(SelectedColumnsQueryConfig config, String selectList) {
+        String tableName = config.getTableName();
+        List<String> outerColumns = new ArrayList<>();
+        if (config.getFilters() != null)
+            config.getFilters().forEach(f -> outerColumns.add(f.getColumn()));
+        if (config.getOrderBy() != null)
+            config.getOrderBy().forEach(o -> outerColumns.add(o.getColumn()));
+
+        StringBuilder queryBuilder = new StringBuilder(buildJoinedQuery(
+                tableName, config.getColumns(), config.getJoinTables(), config.getSampleRatio(), outerColumns, selectList));
+
+        List<String> predicates = new ArrayList<>();
+        if (config.getFilters() != null) {
+            for (FilterCondition filter : config.getFilters())
+                predicates.add(renderFilter(tableName, filter));
+        }
+
+        if (config.getPartitionIds() != null && !config.getPartitionIds().isEmpty()) {
+            predicates.add(quote(tableName) + "." + quote("_partition_id") + " IN " + renderList(config.getPartitionIds()));
+        }
+
+        if (!predicates.isEmpty())
+            queryBuilder.append(" WHERE ").append(String.join(" AND ", predicates));
+
+        if (config.getOrderBy() != null && !config.getOrderBy().isEmpty()) {
+            List<String> order = new ArrayList<>();
+            for (OrderByColumn ob : config.getOrderBy()) {
+                if (!ob.getDirection().equals("ASC") && !ob.getDirection().equals("DESC"))
+                    throw new IllegalArgumentException("Invalid sort direction: " + ob.getDirection());
+
+                order.add(quoteColumn(tableName, ob.getColumn()) + " " + ob.getDirection());
+            }
+            queryBuilder.append(" ORDER BY ").append(String.join(", ", order));
+        }
+
+        if (config.getLimit() != null) {
+            if (config.getLimit() < 0)
+                throw new IllegalArgumentException("Limit must not be negative");
+
+            queryBuilder.append(" LIMIT ").append(config.getLimit());
+        }
+
+        if (config.getOffset() != null && config.getOffset() > 0) {
+            if (config.getLimit() == null)
+                queryBuilder.append(" LIMIT ").append(Long.MAX_VALUE);
+
+            queryBuilder.append(" OFFSET ").append(config.getOffset());
+        }
+
+        return queryBuilder.toString();
+    }
+
+    /**
+     * Query returning the number of rows after {@code after} on the watermark column and the new
+     * high-water mark as a string, over the same joins and filters as the export itself.
+     */
+    public static String buildWatermarkRangeQuery(SelectedColumnsQueryConfig config, String after) {
+        String column = quoteColumn(config.getTableName(), config.getWatermarkColumn());
+
+        SelectedColumnsQueryConfig range = new SelectedColumnsQueryConfig(config);
+        range.setOrderBy(null);
+        range.setLimit(null);
+        range.setOffset(null);
+
+        if (after != null) {
+            List<FilterCondition> filters = new ArrayList<>();
+            if (config.getFilters() != null)
+                filters.addAll(config.getFilters());
+            filters.add(new FilterCondition(config.getWatermarkColumn(), ">", after));
+            range.setFilters(filters);
+        }
+
+        return buildSelectQuery(range, "count(), toString(max(" + column + "))");
+    }
 
-        return fetchDataHelper(sql + " LIMIT 100");
+    private static String renderList(List<String> values) {
+        if (values == null || values.isEmpty())
+            throw new IllegalArgumentException("Value list must not be empty");
+
+        StringJoiner joiner = new StringJoiner(", ", "(", ")");
+        for (String v : values)
+            joiner.add(quoteLiteral(v));
+
+        return joiner.toString();
+    }
+
+    private static String renderFilter(String tableName, FilterCondition filter) {
+        if (filter.getOperator() == null)
+            throw new IllegalArgumentException("Filter operator must not be empty");
+
+        String column = quoteColumn(tableName, filter.getColumn());
+        String operator = filter.getOperator().trim().toUpperCase().replaceAll("\\s+", " ");
+
+        return switch (operator) {
+            case "=", "!=", "<>", "<", "<=", ">", ">=", "LIKE", "NOT LIKE", "ILIKE", "NOT ILIKE" ->
+                    column + " " + operator + " " + quoteLiteral(filter.getValue());
+            case "IN", "NOT IN" -> column + " " + operator + " " + renderList(filter.getValues());
+            case "BETWEEN" -> {
+                if (filter.getValues() == null || filter.getValues().size() != 2)
+                    throw new IllegalArgumentException("BETWEEN needs exactly two values");
+
+                yield column + " BETWEEN " + quoteLiteral(filter.getValues().get(0))
+                        + " AND " + quoteLiteral(filter.getValues().get(1));
+            }
+            case "IS NULL", "IS NOT NULL" -> column + " " + operator;
+            default -> throw new IllegalArgumentException("Unsupported filter operator: " + filter.getOperator());
+        };
+    }
+
+    public List<String[]> querySelectedColumns(SelectedColumnsQueryConfig config) throws Exception {
+        // Preview never returns more than PREVIEW_ROWS, even when the export limit is larger
+        SelectedColumnsQueryConfig preview = new SelectedColumnsQueryConfig(config);
+        preview.setLimit(config.getLimit() == null ? PREVIEW_ROWS : Math.min(config.getLimit(), PREVIEW_ROWS));
+
+        return fetchDataHelper(buildSelectQuery(preview), buildQuerySettings(preview));
+    }
+
+    /**
+     * Returns {row count, high-water mark} for an incremental export, see
+     * {@link #buildWatermarkRangeQuery(SelectedColumnsQueryConfig, String)}.
+     */
+    public String[] getWatermarkRange(SelectedColumnsQueryConfig config, String after) {
+        return getRowsFromResponse(buildWatermarkRangeQuery(config, after), buildQuerySettings(config)).getFirst();
+    }
+
+    /**
+     * Live progress of all running queries whose query_id starts with the prefix: read rows and
+     * bytes, written rows and bytes, and the server's estimate of the rows to read.
+     */
+    public long[] getQueryProgress(String queryIdPrefix) {
+        String sql = "SELECT sum(read_rows), sum(read_bytes), sum(written_rows), sum(written_bytes), sum(total_rows_approx)"
+                + " FROM system.processes WHERE startsWith(query_id, " + quoteLiteral(queryIdPrefix) + ")";
+
+        String[] row = getRowsFromResponse(sql, Map.of(), adminQueryId()).getFirst();
+        long[] progress = new long[row.length];
+        for (int i = 0; i < row.length; i++)
+            progress[i] = Long.parseLong(row[i]);
+
+        return progress;
+    }
+
+    /**
+     * Kills every running query whose id starts with the prefix. ASYNC returns right away, the
+     * queries stop at their next cancellation point, which is within a block for reads and
+     * inserts alike.
+     */
+    public void killQueries(String queryIdPrefix) throws Exception {
+        execute("KILL QUERY WHERE startsWith(query_id, " + quoteLiteral(queryIdPrefix) + ") ASYNC", adminQueryId());
+    }
+
+    /**
+     * Estimates what an export would read without running it, using EXPLAIN ESTIMATE for the
+     * rows/parts/marks picked by the primary key and system.columns for the byte sizes.
+     */
+    public ExportEstimate estimateExport(SelectedColumnsQueryConfig config) {
+        String sql = buildSelectQuery(config);
+        Map<String, String> settings = buildQuerySettings(config);
+
+        ExportEstimate estimate = new ExportEstimate();
+        List<TableEstimate> tables = new ArrayList<>();
+
+        // Columns: database, table, parts, rows, marks
+        for (String[] row : getRowsFromResponse("EXPLAIN ESTIMATE " + sql, settings)) {
+            TableEstimate te = new TableEstimate(row[0], row[1],
+                    Long.parseLong(row[2]), Long.parseLong(row[3]), Long.parseLong(row[4]));
+            tables.add(te);
+
+            estimate.setParts(estimate.getParts() + te.getParts());
+            estimate.setRows(estimate.getRows() + te.getRows());
+            estimate.setMarks(estimate.getMarks() + te.getMarks());
+
+            long[] bytes = estimateTableBytes(te, referencedColumns(config, te.getTable()));
+            estimate.setCompressedBytes(estimate.getCompressedBytes() + bytes[0]);
+            estimate.setUncompressedBytes(estimate.getUncompressedBytes() + bytes[1]);
+        }
+
+        estimate.setTables(tables);
+        // Same settings as the export, the join algorithm decides the shape of the pipeline
+        estimate.setPipeline(getRowsFromResponse("EXPLAIN PIPELINE " + sql, settings).stream()
+                .map(row -> row[0])
+                .toList());
+
+        return estimate;
+    }
+
+    /**
+     * Columns of the given table that the export reads: the selected ones and those only used by
+     * filters, ORDER BY, the watermark or join conditions. An empty list means all of them.
+     */
+    static List<String> referencedColumns(SelectedColumnsQueryConfig config, String table) {
+        Set<String> columns = new LinkedHashSet<>();
+        String mainTable = config.getTableName();
+
+        config.getColumns().forEach(c -> addReference(columns, table, mainTable, c));
+        if (config.getFilters() != null)
+            config.getFilters().forEach(f -> addReference(columns, table, mainTable, f.getColumn()));
+        if (config.getOrderBy() != null)
+            config.getOrderBy().forEach(o -> addReference(columns, table, mainTable, o.getColumn()));
+        if (config.getWatermarkColumn() != null && !config.getWatermarkColumn().isBlank())
+            addReference(columns, table, mainTable, config.getWatermarkColumn());
+
+        if (config.getJoinTables() != null) {
+            for (JoinTable jt : config.getJoinTables()) {
+                if (jt.getFilters() != null)
+                    jt.getFilters().forEach(f -> addReference(columns, table, jt.getTableName(), f.getColumn()));
+                if (jt.getJoinCondition() == null) continue;
+
+                Matcher m = QUALIFIED_COLUMN.matcher(jt.getJoinCondition());
+                while (m.find()) {
+                    String t = m.group(1) != null ? m.group(1).replace("``", "`") : m.group(2);
+                    String column = m.group(3) != null ? m.group(3).replace("``", "`") : m.group(4);
+
+                    if (t.equals(table))
+                        columns.add(column);
+                }
+            }
+        }
+
+        return new ArrayList<>(columns);
+    }
+
+    /**
+     * Adds a column reference written as in the config, unqualified ones belong to {@code owner}.
+     */
+    private static void addReference(Set<String> columns, String table, String owner, String reference) {
+        int dot = reference.indexOf('.');
+        if (dot < 0 && table.equals(owner))
+            columns.add(reference);
+        else if (dot > 0 && reference.substring(0, dot).equals(table))
+            columns.add(reference.substring(dot + 1));
+    }
+
+    /**
+     * Scales the on-disk size of the referenced columns by the share of rows the estimate
+     * expects to read. Returns {compressed, uncompressed}.
+     */
+    private long[] estimateTableBytes(TableEstimate te, List<String> columns) {
+        String sql = "SELECT sum(data_compressed_bytes), sum(data_uncompressed_bytes) FROM system.columns"
+                + " WHERE database = " + quoteLiteral(te.getDatabase()) + " AND table = " + quoteLiteral(te.getTable());
+
+        if (!columns.isEmpty()) {
+            StringJoiner names = new StringJoiner(", ", " AND name IN (", ")");
+            columns.forEach(c -> names.add(quoteLiteral(c)));
+            sql += names;
+        }
+
+        String[] sizes = getRowsFromResponse(sql, Map.of()).getFirst();
+        String totalRows = getListFromResponse("SELECT sum(rows) FROM system.parts WHERE active"
+                + " AND database = " + quoteLiteral(te.getDatabase()) + " AND table = " + quoteLiteral(te.getTable())).getFirst();
+
+        long total = Long.parseLong(totalRows);
+        if (total == 0)
+            return new long[]{0, 0};
+
+        double share = Math.min(1.0, (double) te.getRows() / total);
+        return new long[]{
+                (long) (Long.parseLong(sizes[0]) * share),
+                (long) (Long.parseLong(sizes[1]) * share)
+        };
     }
 
     public Client getClient() {
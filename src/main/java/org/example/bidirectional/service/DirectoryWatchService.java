@@ -0,0 +1,330 @@
+package org.example.bidirectional.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.example.bidirectional.config.ConnectionConfig;
+import org.example.bidirectional.config.UploadConfig;
+import org.example.bidirectional.exception.AdmissionRejectedException;
+import org.example.bidirectional.exception.NotFoundException;
+import org.example.bidirectional.model.TailOffset;
+import org.example.bidirectional.model.WatchStatus;
+import org.example.bidirectional.util.CsvRanges;
+import org.example.bidirectional.util.MappedRangeInputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tails CSV files that producers keep appending to. Every watched directory is scanned on file
+ * system events and on a fixed poll interval (events are not delivered on every file system,
+ * e.g. network mounts). Only complete records past the stored byte offset of a file are sent,
+ * in batches of at most {@code config.watch.batch-size}, through the regular insert path.
+ * <p>
+ * Offsets are kept in {@code config.state-dir}/watch-offsets.json. The byte range of a batch is
+ * recorded before its insert and every insert carries a token derived from that range and the
+ * file's identity, so a batch that was inserted right before a crash is replayed identically
+ * and deduplicated by the server, while a rotated file sending the same ranges is not. Deduplication needs a Replicated*MergeTree table or a MergeTree table with
+ * non_replicated_deduplication_window set, other tables are refused on register.
+ */
+@Service
+public class DirectoryWatchService {
+    // Table settings of a target created for a watch, enough to deduplicate replayed batches
+    public static final Map<String, String> TABLE_SETTINGS = Map.of("non_replicated_deduplication_window", "1000");
+
+    // Bytes of the first record that go into a file's fingerprint, enough to tell contents apart
+    private static final int FINGERPRINT_BYTES = 64 * 1024;
+
+    @Value("${config.state-dir}")
+    private Path stateDir;
+
+    @Value("${config.watch.poll-interval}")
+    private Duration pollInterval;
+
+    @Value("${config.watch.batch-size}")
+    private DataSize batchSize;
+
+    private final AdmissionService admissionService;
+    private final BandwidthService bandwidthService;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, TailOffset> offsets = new HashMap<>();
+    private final Map<String, Watch> watches = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("directory-watch").daemon().factory());
+    private WatchService watchService;
+
+    static final class Watch {
+        final String id;
+        final UploadConfig config;
+        final Path directory;
+        final String pattern;
+        final IngestionService ingestionService;
+        final ReentrantLock lock = new ReentrantLock();
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong lines = new AtomicLong();
+        volatile String lastError;
+        WatchKey key;
+        ScheduledFuture<?> poll;
+
+        Watch(String id, UploadConfig config, Path directory, String pattern, IngestionService ingestionService) {
+            this.id = id;
+            this.config = config;
+            this.directory = directory;
+            this.pattern = pattern;
+            this.ingestionService = ingestionService;
+        }
+    }
+
+    public DirectoryWatchService(AdmissionService admissionService, BandwidthService bandwidthService) {
+        this.admissionService = admissionService;
+        this.bandwidthService = bandwidthService;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(stateDir);
+
+        Path file = stateDir.resolve("watch-offsets.json");
+        if (Files.exists(file))
+            offsets.putAll(mapper.readValue(file.toFile(), new TypeReference<Map<String, TailOffset>>() {}));
+
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread.ofPlatform().name("directory-watch-events").daemon().start(this::dispatchEvents);
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        scheduler.shutdownNow();
+        watchService.close();
+    }
+
+    /**
+     * Starts tailing the files matching the pattern in an already resolved directory. The id is
+     * derived from the target table and the directory, so registering the same watch again after
+     * a restart resumes from the stored offsets.
+     */
+    public WatchStatus register(Path directory, UploadConfig config) throws IOException {
+        String pattern = config.getFilePattern() == null || config.getFilePattern().isBlank()
+                ? "*.csv"
+                : config.getFilePattern();
+
+        ConnectionConfig connection = config.getConnection();
+        String id = ExportCacheService.sha256Hex(String.join("\n",
+                connection.getHost() + ":" + connection.getPort(),
+                connection.getDatabase(),
+                config.getTableName(),
+                directory.toString(),
+                pattern)).substring(0, 16);
+
+        ClickHouseService clickHouseService = new ClickHouseService(connection);
+        if (!clickHouseService.deduplicatesInserts(config.getTableName()))
+            throw new IllegalArgumentException("Table " + config.getTableName() + " does not deduplicate inserts, a batch"
+                    + " replayed after a crash would be inserted twice. Use a Replicated table or set"
+                    + " non_replicated_deduplication_window, e.g. ALTER TABLE ... MODIFY SETTING"
+                    + " non_replicated_deduplication_window = 1000");
+
+        IngestionService ingestionService = new IngestionService(clickHouseService, bandwidthService);
+        Watch watch = new Watch(id, config, directory, pattern, ingestionService);
+        if (watches.putIfAbsent(id, watch) != null)
+            throw new IllegalArgumentException("Directory is already watched for this table: " + id);
+
+        watch.key = directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watch.poll = scheduler.scheduleWithFixedDelay(
+                () -> scan(watch), 0, pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+
+        return status(watch);
+    }
+
+    public void unregister(String id) {
+        Watch watch = watches.remove(id);
+        if (watch == null)
+            throw new NotFoundException("No such watch: " + id);
+
+        watch.poll.cancel(false);
+
+        // Registering a directory twice returns the same key, keep it while others still use it
+        if (watches.values().stream().noneMatch(w -> w.key == watch.key))
+            watch.key.cancel();
+    }
+
+    public List<WatchStatus> getWatches() {
+        return watches.values().stream().map(DirectoryWatchService::status).toList();
+    }
+
+    private static WatchStatus status(Watch watch) {
+        return new WatchStatus(watch.id, watch.directory.toString(), watch.pattern, watch.config.getTableName(),
+                watch.batches.get(), watch.lines.get(), watch.lastError);
+    }
+
+    private void dispatchEvents() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                key.pollEvents();
+
+                for (Watch watch : watches.values()) {
+                    if (watch.key == key)
+                        scheduler.execute(() -> scan(watch));
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    private void scan(Watch watch) {
+        // A scan that is already running picks up whatever triggered this one
+        if (!watch.lock.tryLock())
+            return;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(watch.directory, watch.pattern)) {
+            String error = null;
+            for (Path file : files) {
+                // One bad file must not hold back the others, it is retried on the next poll
+                try {
+                    if (Files.isRegularFile(file))
+                        tail(watch, file.toRealPath());
+                } catch (AdmissionRejectedException e) {
+                    // Server is busy, the next poll continues from the stored offsets
+                    return;
+                } catch (Exception e) {
+                    Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                    error = file.getFileName() + ": " + cause.getMessage();
+                }
+            }
+            watch.lastError = error;
+        } catch (IOException e) {
+            watch.lastError = e.getMessage();
+        } finally {
+            watch.lock.unlock();
+        }
+    }
+
+    void tail(Watch watch, Path file) throws Exception {
+        String key = ExportCacheService.sha256Hex(watch.id + "\n" + file);
+        UploadConfig config = watch.config;
+        List<String> headers = new ArrayList<>(config.getColumnTypes().keySet());
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String fileKey = String.valueOf(Files.readAttributes(file, BasicFileAttributes.class).fileKey());
+
+            long dataStart = CsvRanges.headerEnd(channel);
+            String fingerprint = fingerprint(channel, dataStart);
+
+            TailOffset state = getOffset(key);
+            if (state != null && (!fileKey.equals(state.getFileKey()) || size < state.getOffset()
+                    || state.getFingerprint() != null && !state.getFingerprint().equals(fingerprint))) {
+                // Replaced, truncated or rewritten in place (log rotation), start over with the new
+                // content. Inodes are reused, the generation keeps its tokens apart from the old ones
+                TailOffset replaced = new TailOffset(fileKey, dataStart);
+                replaced.setGeneration(state.getGeneration() + 1);
+                state = replaced;
+            }
+
+            if (dataStart == size)
+                return; // Header or first record not complete yet
+
+            if (state == null)
+                state = new TailOffset(fileKey, dataStart);
+            if (state.getFingerprint() == null)
+                state.setFingerprint(fingerprint);
+            String token = ExportCacheService.sha256Hex(key + "\n" + fileKey + "\n" + state.getGeneration());
+
+            byte[] header = new byte[(int) dataStart];
+            channel.read(ByteBuffer.wrap(header), 0);
+
+            while (true) {
+                long start = state.getOffset();
+                long end;
+
+                if (state.getPendingEnd() != null) {
+                    end = state.getPendingEnd();
+                } else {
+                    end = CsvRanges.lastBoundary(channel, start, Math.min(size, start + batchSize.toBytes()));
+                    if (end == start && size - start > batchSize.toBytes())
+                        end = CsvRanges.lastBoundary(channel, start, size); // Single record over the batch size
+                    if (end == start)
+                        break;
+
+                    state.setPendingEnd(end);
+                    putOffset(key, state);
+                }
+
+                long lines;
+                try (var _ = admissionService.admit(config.getConnection(), AdmissionService.JobKind.UPLOAD)) {
+                    lines = watch.ingestionService.ingestDataFromStream(
+                            config.getTotalCols(), config.getTableName(), headers, config.getDelimiter(),
+                            new SequenceInputStream(new ByteArrayInputStream(header),
+                                    new MappedRangeInputStream(channel, start, end)),
+                            Map.of("insert_deduplication_token", token + ":" + start + ":" + end));
+                }
+
+                state.setOffset(end);
+                state.setPendingEnd(null);
+                putOffset(key, state);
+
+                watch.batches.incrementAndGet();
+                watch.lines.addAndGet(lines);
+            }
+        }
+    }
+
+    /**
+     * Hash of the header and the start of the first record, null while that record is not
+     * complete. A file rewritten in place keeps its file key and can grow past the stored
+     * offset, this tells that its content changed without reading all of it.
+     */
+    private static String fingerprint(FileChannel channel, long dataStart) throws IOException {
+        long end = CsvRanges.recordEnd(channel, dataStart);
+        if (end == dataStart)
+            return null;
+
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(end, dataStart + FINGERPRINT_BYTES));
+        int read;
+        do {
+            read = channel.read(head, head.position());
+        } while (read > 0 && head.hasRemaining());
+
+        return ExportCacheService.sha256Hex(head.array());
+    }
+
+    private synchronized TailOffset getOffset(String key) {
+        return offsets.get(key);
+    }
+
+    private synchronized void putOffset(String key, TailOffset offset) throws IOException {
+        offsets.put(key, offset);
+
+        Path temp = Files.createTempFile(stateDir, "watch-offsets", ".tmp");
+        try {
+            // Forced to disk before the rename, otherwise a power loss can leave an empty file
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                out.write(ByteBuffer.wrap(mapper.writeValueAsBytes(offsets)));
+                out.force(true);
+            }
+            Files.move(temp, stateDir.resolve("watch-offsets.json"),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
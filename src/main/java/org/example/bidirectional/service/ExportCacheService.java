@@ -0,0 +1,251 @@
+package org.example.bidirectional.service;
+
+import jakarta.annotation.PostConstruct;
+import org.example.bidirectional.config.ConnectionConfig;
+import org.example.bidirectional.model.ExportArtifact;
+import org.example.bidirectional.util.TransferMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Size bounded LRU cache of finished exports on local disk. Entries are keyed by the normalized
+ * export SQL plus output format and connection, and remember the table version they were built
+ * from so that any change in system.parts invalidates them.
+ * <p>
+ * Artifacts are handed out as {@link Lease}s. An entry that is evicted or replaced while leased
+ * leaves the cache right away, but its file stays until the last lease is closed, so a download
+ * never loses its file between the lookup and the read. Disk usage can exceed the limit by the
+ * files still being served.
+ */
+@Service
+public class ExportCacheService {
+    // Tomcat opens a sendfile target only after the servlet returned and the lease is closed
+    private static final Duration SENDFILE_GRACE = Duration.ofMinutes(1);
+
+    @Value("${config.export.cache-dir}")
+    private Path cacheDir;
+
+    @Value("${config.export.cache-max-size}")
+    private DataSize maxSize;
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, ExportArtifact> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, ExportArtifact> byId = new HashMap<>();
+    private long totalSize = 0;
+
+    // Open leases per file, files of removed entries wait here for their last lease
+    private final Map<Path, Integer> leases = new HashMap<>();
+    private final Set<Path> doomed = new HashSet<>();
+    private final Map<Path, Long> released = new LinkedHashMap<>();
+
+    /**
+     * Keeps the file of an artifact on disk until closed, closing it more than once is harmless.
+     */
+    public final class Lease implements AutoCloseable {
+        private final ExportArtifact artifact;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Lease(ExportArtifact artifact) {
+            this.artifact = artifact;
+        }
+
+        public ExportArtifact getArtifact() {
+            return artifact;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true))
+                release(artifact.getPath());
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(cacheDir);
+        TransferMetrics.gauge("bidirectional.temp.disk.usage", this, ExportCacheService::getTotalSize, "area", "export-cache");
+
+        // Nothing is indexed across restarts, so anything left over is orphaned
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDir)) {
+            for (Path file : files)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    public static String sha256Hex(String input) {
+        return sha256Hex(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String sha256Hex(byte[] input) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(input));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Cache key for an export. The connection is part of the key since different servers,
+     * databases or users (row policies) can return different data for the same SQL.
+     */
+    public String cacheKey(ConnectionConfig connection, String sql, String format) {
+        String normalizedSql = sql.trim().replaceAll("\\s+", " ");
+
+        return sha256Hex(String.join("\n",
+                connection.getHost() + ":" + connection.getPort(),
+                connection.getDatabase(),
+                String.valueOf(connection.getUsername()),
+                format,
+                normalizedSql));
+    }
+
+    public static String etag(String key, String version) {
+        return "\"" + sha256Hex(key + "\n" + version).substring(0, 32) + "\"";
+    }
+
+    /**
+     * Returns the cached artifact if it was built from the given table version. A stale entry
+     * is dropped right away.
+     */
+    public synchronized Optional<Lease> lookup(String key, String version) {
+        purgeReleased();
+
+        ExportArtifact artifact = entries.get(key);
+        if (artifact == null)
+            return Optional.empty();
+
+        if (version == null || !version.equals(artifact.getVersion()) || !Files.exists(artifact.getPath())) {
+            remove(key);
+            return Optional.empty();
+        }
+
+        return Optional.of(lease(artifact));
+    }
+
+    /**
+     * Temp files are created inside the cache directory so {@link #store} is a rename on the
+     * same file system instead of a copy.
+     */
+    public Path newTempFile(String prefix) throws IOException {
+        return Files.createTempFile(cacheDir, prefix.replaceAll("[^a-zA-Z0-9-_]", "_") + "_", ".tmp");
+    }
+
+    /**
+     * Moves a finished export into the cache. Exports without a table version can never be
+     * reused for another request, but they can still be resumed by id until evicted.
+     * <p>
+     * The id is random and not derived from the cache key: anyone can compute the key of a
+     * guessed query, while the id only reaches clients that ran the export with valid
+     * credentials. The ETag stays derived from key and version, so a client can revalidate
+     * without the export running again.
+     */
+    public synchronized Lease store(String key, String version, Path file, long lineCount) throws IOException {
+        purgeReleased();
+
+        String id = UUID.randomUUID().toString();
+        String entryKey = version != null ? key : id;
+        remove(entryKey);
+
+        Path target = cacheDir.resolve(id + ".export");
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+
+        String etag = version != null ? etag(key, version) : etag(id, "null");
+        ExportArtifact artifact = new ExportArtifact(id, target, Files.size(target), lineCount, version, etag);
+        entries.put(entryKey, artifact);
+        byId.put(id, artifact);
+        totalSize += artifact.getSize();
+
+        evict(entryKey);
+        return lease(artifact);
+    }
+
+    /**
+     * Returns an artifact by id regardless of the table version, used to resume downloads of
+     * the exact bytes the client already started receiving.
+     */
+    public synchronized Optional<Lease> get(String id) {
+        purgeReleased();
+
+        ExportArtifact artifact = byId.get(id);
+        if (artifact == null || !Files.exists(artifact.getPath()))
+            return Optional.empty();
+
+        return Optional.of(lease(artifact));
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, ExportArtifact>> it = entries.entrySet().iterator();
+
+        while (totalSize > maxSize.toBytes() && it.hasNext()) {
+            Map.Entry<String, ExportArtifact> e = it.next();
+            if (e.getKey().equals(keep))
+                continue;
+
+            it.remove();
+            byId.remove(e.getValue().getId());
+            delete(e.getValue());
+        }
+    }
+
+    private void remove(String key) {
+        ExportArtifact artifact = entries.remove(key);
+        if (artifact != null) {
+            byId.remove(artifact.getId());
+            delete(artifact);
+        }
+    }
+
+    private void delete(ExportArtifact artifact) {
+        totalSize -= artifact.getSize();
+
+        if (leases.containsKey(artifact.getPath()))
+            doomed.add(artifact.getPath());
+        else
+            deleteFile(artifact.getPath());
+    }
+
+    private Lease lease(ExportArtifact artifact) {
+        leases.merge(artifact.getPath(), 1, Integer::sum);
+        return new Lease(artifact);
+    }
+
+    private synchronized void release(Path path) {
+        Integer open = leases.computeIfPresent(path, (_, n) -> n > 1 ? n - 1 : null);
+        if (open == null && doomed.remove(path))
+            released.put(path, System.nanoTime());
+    }
+
+    private void purgeReleased() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Long>> it = released.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<Path, Long> e = it.next();
+            if (now - e.getValue() < SENDFILE_GRACE.toNanos())
+                break;
+
+            it.remove();
+            deleteFile(e.getKey());
+        }
+    }
+
+    private static void deleteFile(Path path) {
+        try { Files.deleteIfExists(path); }
+        catch (IOException _) {}
+    }
+}
@@ -1,62 +1,147 @@
 package org.example.bidirectional.service;
 
-import com.opencsv.CSVParserBuilder;
-import com.opencsv.CSVReader;
-import com.opencsv.CSVReaderBuilder;
 import com.opencsv.CSVWriter;
-import com.opencsv.exceptions.CsvException;
 import com.univocity.parsers.csv.CsvParser;
-import com.univocity.parsers.csv.CsvParserSettings;
+import org.example.bidirectional.util.CsvCharset;
+import org.example.bidirectional.util.CsvSpliterator;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Service
 public class FileService {
+    @Value("${config.ingest.local-root:}")
+    private String localRoot;
+
+    /**
+     * Resolves a path sent by a client against the allow-listed local ingestion root. Symlinks
+     * are followed before the check so they cannot point outside the root.
+     */
+    public Path resolveLocalPath(String localPath) throws IOException {
+        if (localRoot == null || localRoot.isBlank())
+            throw new IllegalArgumentException("Local file ingestion is disabled");
+
+        if (localPath == null || localPath.isBlank())
+            throw new IllegalArgumentException("Local path must not be empty");
+
+        Path root = Path.of(localRoot).toRealPath();
+        Path candidate = root.resolve(localPath).normalize();
+
+        if (!Files.isRegularFile(candidate) && !Files.isDirectory(candidate))
+            throw new IllegalArgumentException("Local path does not exist: " + localPath);
+
+        Path real = candidate.toRealPath();
+        if (!real.startsWith(root))
+            throw new IllegalArgumentException("Local path is outside the allowed ingestion root");
+
+        return real;
+    }
+
+    /**
+     * Streams the records of a CSV file, the header included, decoded with the charset found by
+     * {@link CsvCharset}. The stream is backed by a {@link CsvSpliterator}, so {@code .parallel()}
+     * parses ranges of a large file on several threads. Close the stream to release the file.
+     */
+    public Stream<String[]> streamCsv(Path path, char delimiter) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            CsvSpliterator records = new CsvSpliterator(channel, CsvCharset.detect(channel), delimiter);
+            return StreamSupport.stream(records, false).onClose(() -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
 
     // Read CSV file and return data as a list of String arrays
-    public List<String[]> readCsv(String filePath, char delimiter) throws IOException, CsvException {
-        try (CSVReader reader = new CSVReaderBuilder(new FileReader(filePath))
-                .withCSVParser(new CSVParserBuilder().withSeparator(delimiter).build())
-                .build()) {
-            return reader.readAll();
+    public List<String[]> readCsv(String filePath, char delimiter) throws IOException {
+        try (Stream<String[]> records = streamCsv(Path.of(filePath), delimiter)) {
+            return records.toList();
         }
     }
 
-    // Write data to CSV file
-    // Write data to CSV file
-    public void writeCsv(String filePath, List<String[]> data, char delimiter) throws IOException {
-        try (CSVWriter writer = new CSVWriter(new FileWriter(filePath), delimiter,
+    /**
+     * Writes rows as they come, so the data never has to be in memory at once. A parallel stream
+     * is written in its encounter order.
+     */
+    public void writeCsv(Path path, Stream<String[]> rows, char delimiter, Charset charset) throws IOException {
+        writeCsv(path, rows.iterator(), delimiter, charset);
+    }
+
+    public void writeCsv(Path path, Iterator<String[]> rows, char delimiter, Charset charset) throws IOException {
+        try (CSVWriter writer = new CSVWriter(Files.newBufferedWriter(path, charset), delimiter,
                 CSVWriter.DEFAULT_QUOTE_CHARACTER,  // <--- enable proper quoting
                 CSVWriter.DEFAULT_ESCAPE_CHARACTER,
                 CSVWriter.DEFAULT_LINE_END)) {
-            writer.writeAll(data);
+            while (rows.hasNext())
+                writer.writeNext(rows.next());
+
+            // CSVWriter keeps write errors to itself until asked
+            if (writer.checkError())
+                throw new IOException("Failed to write CSV file: " + path);
         }
     }
 
-    public static List<String[]> readCsvRows(InputStream inputStream, String delimiter) {
-        List<String[]> data = new ArrayList<>();
+    // Write data to CSV file
+    public void writeCsv(String filePath, List<String[]> data, char delimiter) throws IOException {
+        writeCsv(Path.of(filePath), data.iterator(), delimiter, StandardCharsets.UTF_8);
+    }
 
-        CsvParserSettings parserSettings = new CsvParserSettings();
-        parserSettings.setHeaderExtractionEnabled(true);
-        parserSettings.getFormat().setDelimiter(ClickHouseService.convertStringToChar(delimiter));
+    /**
+     * Streams the records of an uploaded CSV, the header first. The charset is detected like
+     * for local files. The stream reads the input lazily, so taking the first rows of a large
+     * upload does not parse the rest; close it to stop parsing.
+     */
+    public static Stream<String[]> streamCsvRows(InputStream inputStream, String delimiter) throws IOException {
+        BufferedInputStream input = new BufferedInputStream(inputStream, CsvCharset.SAMPLE);
+        CsvCharset charset = CsvCharset.detect(input);
 
-        CsvParser parser = new CsvParser(parserSettings);
-        parser.beginParsing(new BufferedReader(new InputStreamReader(inputStream)));
+        // Same records as for local files, the preview shows blank lines and empty fields as they are
+        CsvParser parser = new CsvParser(CsvSpliterator.parserSettings(ClickHouseService.convertStringToChar(delimiter)));
+        parser.beginParsing(input, charset.getCharset());
 
-        try {
-            data.add(parser.getContext().headers());
+        Iterator<String[]> records = new Iterator<>() {
+            private String[] next = parser.parseNext();
 
-            String[] row;
-            while ((row = parser.parseNext()) != null) {
-                data.add(row);
+            @Override
+            public boolean hasNext() {
+                return next != null;
             }
-        } finally {
-            parser.stopParsing();
-        }
 
-        return data;
+            @Override
+            public String[] next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+
+                String[] current = next;
+                next = parser.parseNext();
+                return current;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(parser::stopParsing);
+    }
+
+    public static List<String[]> readCsvRows(InputStream inputStream, String delimiter) throws IOException {
+        try (Stream<String[]> records = streamCsvRows(inputStream, delimiter)) {
+            return records.toList();
+        }
     }
 }
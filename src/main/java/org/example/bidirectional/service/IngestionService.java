@@ -1,25 +1,356 @@
 package org.example.bidirectional.service;
 
 import com.clickhouse.client.api.DataStreamWriter;
+import com.clickhouse.client.api.insert.InsertResponse;
 import com.clickhouse.client.api.insert.InsertSettings;
+import com.clickhouse.client.api.query.QueryResponse;
+import com.clickhouse.client.api.query.QuerySettings;
 import com.clickhouse.data.ClickHouseFormat;
 import com.univocity.parsers.csv.CsvParser;
 import com.univocity.parsers.csv.CsvParserSettings;
 import com.univocity.parsers.csv.CsvWriter;
 import com.univocity.parsers.csv.CsvWriterSettings;
+import io.micrometer.core.instrument.Timer;
 import org.example.bidirectional.config.SelectedColumnsQueryConfig;
+import org.example.bidirectional.config.UploadConfig;
+import org.example.bidirectional.model.ColumnInfo;
+import org.example.bidirectional.model.FileIngestResult;
+import org.example.bidirectional.util.CsvRanges;
+import org.example.bidirectional.util.ExternalSorter;
+import org.example.bidirectional.util.MappedRangeInputStream;
+import org.example.bidirectional.util.PartitionKey;
+import org.example.bidirectional.util.RangeFileWriter;
+import org.example.bidirectional.util.RowValidator;
+import org.example.bidirectional.util.TransferMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.*;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.example.bidirectional.service.ClickHouseService.quote;
 
 public class IngestionService {
+    private static final Logger log = LoggerFactory.getLogger(IngestionService.class);
 
     private final ClickHouseService clickHouseService;
+    // One job bucket for every stream of the request, null when nothing is throttled
+    private final BandwidthService.Job bandwidth;
+
+    // Tolerant ingestion, see setErrorTolerance
+    private Map<String, String> columnTypes;
+    private QuarantineService.Quarantine quarantine;
+    private Long maxErrors;
+    private Double maxErrorRatio;
+
+    // Presorting by the target's sorting key, see setPresort
+    private List<String> sortKey;
+    private Map<String, String> sortKeyTypes;
+    private long presortRunBytes;
+
+    // Partition routing, see setPartitionRouting
+    private List<String> partitionKey;
+    private long partitionBufferBytes;
+
+    // Progress tracking, see track
+    private ProgressService.Operation operation;
 
     public IngestionService(ClickHouseService clickHouseService) {
+        this(clickHouseService, null);
+    }
+
+    public IngestionService(ClickHouseService clickHouseService, BandwidthService bandwidthService) {
+        this(clickHouseService, bandwidthService, BandwidthService.TrafficClass.BULK);
+    }
+
+    public IngestionService(
+            ClickHouseService clickHouseService,
+            BandwidthService bandwidthService,
+            BandwidthService.TrafficClass trafficClass
+    ) {
         this.clickHouseService = clickHouseService;
+        this.bandwidth = bandwidthService == null ? null : bandwidthService.newJob(trafficClass);
+    }
+
+    private InputStream throttle(InputStream in) {
+        return bandwidth == null ? in : bandwidth.throttle(in);
+    }
+
+    private OutputStream throttle(OutputStream out) {
+        return bandwidth == null ? out : bandwidth.throttle(out);
+    }
+
+    /**
+     * Runs every following query of this service under the operation's query ids, so its
+     * progress can be read from system.processes and it can be killed when cancelled.
+     */
+    public void track(ProgressService.Operation operation) {
+        this.operation = operation;
+        operation.attach(clickHouseService);
+    }
+
+    /**
+     * Makes every following insert of this service tolerant: rows are always parsed client side
+     * and checked against the column types of the target table, a row that does not fit goes to
+     * the quarantine with its line number and reason instead of failing the insert. The limits
+     * apply per file. What is left of them is passed to the server as
+     * input_format_allow_errors_num/ratio for errors only it can detect. Those rows are skipped
+     * without a quarantine entry, but are counted against the same limits, see ErrorBudget.
+     */
+    public void setErrorTolerance(UploadConfig config, QuarantineService.Quarantine quarantine) {
+        Map<String, String> types = new HashMap<>();
+        for (ColumnInfo column : clickHouseService.getColumns(config.getTableName()))
+            types.put(column.getName(), column.getType());
+
+        this.columnTypes = types;
+        this.quarantine = quarantine;
+        this.maxErrors = config.getMaxErrors();
+        this.maxErrorRatio = config.getMaxErrorRatio();
+    }
+
+    /**
+     * Makes every following insert of this service send its rows ordered by the sorting key of
+     * the target table, so the server gets presorted blocks and parts that barely overlap,
+     * which is less work for the insert and for the background merges afterwards. Rows are
+     * sorted in runs of {@code runBytes} that spill to temp files, per stream of the upload.
+     * Only the leading key columns that are plain columns of the CSV are used, nothing is
+     * sorted when the key starts with an expression or the table has none.
+     */
+    public void setPresort(UploadConfig config, long runBytes) {
+        List<String> key = clickHouseService.getSortingKeyColumns(config.getTableName());
+        if (key.isEmpty())
+            return;
+
+        Map<String, String> types = new HashMap<>();
+        for (ColumnInfo column : clickHouseService.getColumns(config.getTableName()))
+            types.put(column.getName(), column.getType());
+
+        this.sortKey = key;
+        this.sortKeyTypes = types;
+        this.presortRunBytes = runBytes;
+    }
+
+    /**
+     * Makes every following insert of this service group the rows by the partition of the
+     * target table. Every partition gets its own buffer, and whenever all buffers together
+     * reach {@code bufferBytes} the largest one is sent as an insert of its own, the rest at
+     * the end. Each insert then touches a single partition, which gives fewer and bigger parts
+     * than file order and stays clear of max_partitions_per_insert_block. The limit applies
+     * per stream of the upload, and a buffer sent with presort is sorted where it is instead of
+     * being counted again. Partition expressions {@link PartitionKey} cannot evaluate fall back
+     * to file order.
+     */
+    public void setPartitionRouting(UploadConfig config, long bufferBytes) {
+        List<String> key = clickHouseService.getPartitionKeyParts(config.getTableName());
+        if (key.isEmpty())
+            return;
+
+        this.partitionKey = key;
+        this.partitionBufferBytes = bufferBytes;
+    }
+
+    /**
+     * Error budget of one file in a tolerant upload, shared by the client's row checks and the
+     * server. The server is allowed only what is left of maxErrors, and the rows it skipped are
+     * the rows sent minus the rows written. Materialized views add to the written rows, so
+     * those skips can be undercounted, never overcounted.
+     */
+    private final class ErrorBudget {
+        private long rows;
+        private long rejected;
+        private long serverRejected;
+
+        void parsed() {
+            rows++;
+        }
+
+        void rejected(long line, String problem) throws IOException {
+            rejected++;
+            if (maxErrors != null && rejected + serverRejected > maxErrors)
+                throw new IOException("More than " + maxErrors + " rows rejected, last at line " + line + ": " + problem);
+        }
+
+        long accepted() {
+            return rows - rejected;
+        }
+
+        void allow(InsertSettings settings) {
+            if (maxErrors != null)
+                settings.serverSetting("input_format_allow_errors_num",
+                        String.valueOf(Math.max(0, maxErrors - rejected - serverRejected)));
+            if (maxErrorRatio != null)
+                settings.serverSetting("input_format_allow_errors_ratio", String.valueOf(maxErrorRatio));
+        }
+
+        void inserted(long sent, long written) throws IOException {
+            long skipped = Math.max(0, sent - written);
+            serverRejected += skipped;
+            quarantine.addServerRejected(skipped);
+
+            if (maxErrors != null && rejected + serverRejected > maxErrors)
+                throw new IOException("More than " + maxErrors + " rows rejected, " + serverRejected
+                        + " of them by the server");
+        }
+
+        void checkRatio() throws IOException {
+            if (maxErrorRatio != null && rows > 0 && (double) (rejected + serverRejected) / rows > maxErrorRatio)
+                throw new IOException("Rejected row ratio exceeds " + maxErrorRatio);
+        }
+    }
+
+    /**
+     * Rows of one stream grouped by partition, see setPartitionRouting.
+     */
+    private final class PartitionBuffers {
+        private final PartitionKey partitioning;
+        private final String tableName;
+        private final List<String> columns;
+        private final Map<String, String> serverSettings;
+        private final ErrorBudget budget;
+
+        // Sorted maps, so the same input always gives the same inserts (deduplication tokens)
+        private final Map<String, List<String[]>> rows = new TreeMap<>();
+        private final Map<String, Long> sizes = new TreeMap<>();
+        private final Set<String> partitions = new HashSet<>();
+        private String[] header;
+        private long bufferedBytes;
+        private long written;
+        private int inserts;
+
+        PartitionBuffers(
+                PartitionKey partitioning,
+                String tableName,
+                List<String> columns,
+                Map<String, String> serverSettings,
+                ErrorBudget budget
+        ) {
+            this.partitioning = partitioning;
+            this.tableName = tableName;
+            this.columns = columns;
+            this.serverSettings = serverSettings;
+            this.budget = budget;
+        }
+
+        void setHeader(String[] header) {
+            this.header = header;
+        }
+
+        void add(String[] row) throws IOException {
+            String partition = partitioning.of(row);
+            long size = ExternalSorter.sizeOf(row);
+
+            rows.computeIfAbsent(partition, _ -> new ArrayList<>()).add(row);
+            sizes.merge(partition, size, Long::sum);
+            partitions.add(partition);
+            bufferedBytes += size;
+
+            if (bufferedBytes >= partitionBufferBytes)
+                flush(Collections.max(sizes.entrySet(), Map.Entry.comparingByValue()).getKey());
+        }
+
+        void flushAll() throws IOException {
+            for (String partition : List.copyOf(rows.keySet()))
+                flush(partition);
+        }
+
+        private void flush(String partition) throws IOException {
+            List<String[]> batch = rows.remove(partition);
+            bufferedBytes -= sizes.remove(partition);
+
+            // Every insert needs its own token, derived from the caller's
+            Map<String, String> settings = serverSettings;
+            String token = serverSettings.get("insert_deduplication_token");
+            if (token != null) {
+                settings = new HashMap<>(serverSettings);
+                settings.put("insert_deduplication_token", token + ":" + inserts);
+            }
+
+            try {
+                written += insertBatch(tableName, columns, header, batch, settings, budget);
+                inserts++;
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                throw new IOException(cause.getMessage(), cause);
+            }
+        }
+    }
+
+    /**
+     * Inserts rows that are already parsed, presorted when that is enabled.
+     */
+    private long insertBatch(
+            String tableName,
+            List<String> columns,
+            String[] header,
+            List<String[]> rows,
+            Map<String, String> serverSettings,
+            ErrorBudget budget
+    ) throws Exception {
+        // The rows are held by the partition buffer already, spilling them would only add disk I/O
+        try (ExternalSorter sorter = newSorter(columns, Long.MAX_VALUE)) {
+            if (sorter != null) {
+                for (String[] row : rows)
+                    sorter.add(row);
+            }
+
+            DataStreamWriter writer = outputStream -> {
+                CsvWriter csvWriter = newCsvWriter(outputStream);
+                try {
+                    csvWriter.writeHeaders(header);
+                    if (sorter != null)
+                        sorter.forEachSorted(row -> csvWriter.writeRow((Object[]) row));
+                    else
+                        for (String[] row : rows)
+                            csvWriter.writeRow((Object[]) row);
+                } finally {
+                    csvWriter.close();
+                }
+            };
+
+            InsertSettings settings = insertSettings(serverSettings, budget);
+            long written = insert(tableName, new AtomicLong(), () -> clickHouseService.getClient()
+                    .insert(quote(tableName), writer, ClickHouseFormat.CSVWithNames, settings));
+
+            if (budget != null)
+                budget.inserted(rows.size(), written);
+            return written;
+        }
+    }
+
+    private ExternalSorter newSorter(List<String> headers, long runBytes) {
+        if (sortKey == null)
+            return null;
+
+        List<Integer> columns = new ArrayList<>();
+        List<String> types = new ArrayList<>();
+        for (String column : sortKey) {
+            int index = headers.indexOf(column);
+            if (index < 0)
+                break;
+            columns.add(index);
+            types.add(sortKeyTypes.getOrDefault(column, "String"));
+        }
+
+        return columns.isEmpty()
+                ? null
+                : new ExternalSorter(columns.stream().mapToInt(Integer::intValue).toArray(), types, runBytes);
     }
 
     public long ingestDataFromStream(
@@ -27,79 +358,605 @@ public class IngestionService {
             String tableName,
             List<String> headers,
             String delimiter,
-            InputStream inputStream
+            InputStream source
+    ) throws Exception {
+        return ingestDataFromStream(totalCols, tableName, headers, delimiter, source, Map.of());
+    }
+
+    /**
+     * @param serverSettings extra insert settings, e.g. insert_deduplication_token
+     */
+    public long ingestDataFromStream(
+            Integer totalCols,
+            String tableName,
+            List<String> headers,
+            String delimiter,
+            InputStream source,
+            Map<String, String> serverSettings
+    ) throws Exception {
+        return ingestDataFromStream(totalCols, tableName, headers, delimiter, source, serverSettings, "");
+    }
+
+    /**
+     * @param sourceName file name recorded with rows rejected in tolerant mode
+     */
+    public long ingestDataFromStream(
+            Integer totalCols,
+            String tableName,
+            List<String> headers,
+            String delimiter,
+            InputStream source,
+            Map<String, String> serverSettings,
+            String sourceName
     ) throws Exception {
         char delimiterChar = ClickHouseService.convertStringToChar(delimiter);
+        InputStream inputStream = throttle(source);
+        AtomicLong parseNanos = new AtomicLong();
+        ErrorBudget budget = columnTypes == null ? null : new ErrorBudget();
 
-        DataStreamWriter writer = outputStream -> {
-            int bufferSize = 131072; // 128 KB buffer size
+        PartitionKey partitioning = partitionKey == null ? null : PartitionKey.compile(partitionKey, headers);
+        if (partitionKey != null && partitioning == null)
+            log.info("Partition key {} cannot be evaluated on the client, inserting {} in file order", partitionKey, tableName);
 
-            CsvParserSettings parserSettings = new CsvParserSettings();
-            parserSettings.setHeaderExtractionEnabled(true);
-            parserSettings.getFormat().setDelimiter(delimiterChar);
-            parserSettings.selectFields(headers.toArray(new String[0]));
-            parserSettings.setInputBufferSize(bufferSize);
+        if (partitioning != null) {
+            PartitionBuffers buffers = new PartitionBuffers(partitioning, tableName, headers, serverSettings, budget);
+            parseRows(inputStream, delimiterChar, headers, sourceName, budget, parseNanos, buffers::setHeader, buffers::add);
+            buffers.flushAll();
+            if (budget != null)
+                budget.checkRatio();
 
-            CsvParser parser = new CsvParser(parserSettings);
-            parser.beginParsing(new BufferedReader(new InputStreamReader(inputStream), bufferSize));
+            TransferMetrics.recordPhase(TransferMetrics.UPLOAD, "parse", parseNanos.get());
+            log.info("Routed {} rows into {} by partition in {} inserts over {} partitions", buffers.written, tableName,
+                    buffers.inserts, buffers.partitions.size());
+            return buffers.written;
+        }
 
-            CsvWriterSettings writerSettings = new CsvWriterSettings();
-            CsvWriter csvWriter = new CsvWriter(new BufferedWriter(new OutputStreamWriter(outputStream), bufferSize), writerSettings);
+        try (ExternalSorter sorter = newSorter(headers, presortRunBytes)) {
+            DataStreamWriter writer;
 
-            try {
-                csvWriter.writeHeaders(parser.getContext().selectedHeaders());
+            if (sorter != null) {
+                // Sorted before the insert starts, the server would time out waiting for the first row
+                long sortStart = System.nanoTime();
+                String[][] sortedHeaders = new String[1][];
+                parseRows(inputStream, delimiterChar, headers, sourceName, budget, new AtomicLong(),
+                        h -> sortedHeaders[0] = h, sorter::add);
+                TransferMetrics.recordPhase(TransferMetrics.UPLOAD, "sort", System.nanoTime() - sortStart);
+                log.info("Presorted {} into {} spilled runs in {} ms", sourceName.isEmpty() ? tableName : sourceName,
+                        sorter.getRuns(), (System.nanoTime() - sortStart) / 1_000_000);
 
-                String[] row;
-                while ((row = parser.parseNext()) != null) {
-                    csvWriter.writeRow((Object[]) row);
-                }
-            } finally {
-                parser.stopParsing();
-                csvWriter.close(); // Proper manual close
+                writer = outputStream -> {
+                    CsvWriter csvWriter = newCsvWriter(outputStream);
+                    try {
+                        csvWriter.writeHeaders(sortedHeaders[0]);
+                        sorter.forEachSorted(row -> csvWriter.writeRow((Object[]) row));
+                    } finally {
+                        csvWriter.close();
+                    }
+                };
+            } else {
+                writer = outputStream -> {
+                    CsvWriter csvWriter = newCsvWriter(outputStream);
+                    try {
+                        parseRows(inputStream, delimiterChar, headers, sourceName, budget, parseNanos,
+                                csvWriter::writeHeaders, row -> csvWriter.writeRow((Object[]) row));
+                    } finally {
+                        csvWriter.close(); // Proper manual close
+                    }
+                };
+            }
+
+            // Streamed rows are still being checked while they are sent, so the server may get
+            // the whole budget here and the total is only checked once the insert is done
+            InsertSettings settings = insertSettings(serverSettings, budget);
+            if (headers.size() == totalCols && !Character.isWhitespace(delimiterChar) && columnTypes == null && sorter == null) {
+                settings.serverSetting("format_csv_delimiter", delimiter);
+                return insert(tableName, parseNanos, () -> clickHouseService.getClient()
+                        .insert(quote(tableName), inputStream, ClickHouseFormat.CSVWithNames, settings));
             }
-        };
 
-        long beforeIngest = clickHouseService.getTotalRows(tableName);
-        if (beforeIngest == 0)
-            --beforeIngest;
+            long written = insert(tableName, parseNanos, () -> clickHouseService.getClient()
+                    .insert(quote(tableName), writer, ClickHouseFormat.CSVWithNames, settings));
 
+            if (budget != null) {
+                budget.inserted(budget.accepted(), written);
+                budget.checkRatio();
+            }
+            return written;
+        }
+    }
+
+    private InsertSettings insertSettings(Map<String, String> serverSettings, ErrorBudget budget) {
         InsertSettings settings = new InsertSettings()
                 .serverSetting("input_format_with_names_use_header", "1")
                 .serverSetting("input_format_skip_unknown_fields", "1");
+        if (budget != null)
+            budget.allow(settings);
+        serverSettings.forEach(settings::serverSetting);
+
+        settings.setQueryId(clickHouseService.nextQueryId());
+        return settings;
+    }
+
+    private long insert(
+            String tableName,
+            AtomicLong parseNanos,
+            Supplier<CompletableFuture<InsertResponse>> request
+    ) throws Exception {
+        // Rows are taken from the insert summary, diffing COUNT(*) is wrong once several
+        // inserts run against the same table at the same time
+        Timer.Sample sample = TransferMetrics.start();
+        long start = System.nanoTime();
+        try (InsertResponse response = request.get().get()) {
+            return recordInsert(tableName, response, System.nanoTime() - start, parseNanos.get());
+        } finally {
+            TransferMetrics.recordQuery("insert", sample);
+        }
+    }
+
+    private static CsvWriter newCsvWriter(OutputStream outputStream) {
+        return new CsvWriter(new BufferedWriter(new OutputStreamWriter(outputStream), 131072), new CsvWriterSettings());
+    }
+
+    /**
+     * Parses the selected columns of a CSV stream, checking each row in tolerant mode, and
+     * hands the header and every accepted row to the sinks.
+     */
+    private void parseRows(
+            InputStream inputStream,
+            char delimiterChar,
+            List<String> headers,
+            String sourceName,
+            ErrorBudget budget,
+            AtomicLong parseNanos,
+            Consumer<String[]> headerSink,
+            ExternalSorter.RowConsumer rowSink
+    ) throws IOException {
+        int bufferSize = 131072; // 128 KB buffer size
+
+        CsvParserSettings parserSettings = new CsvParserSettings();
+        parserSettings.setHeaderExtractionEnabled(true);
+        parserSettings.getFormat().setDelimiter(delimiterChar);
+        parserSettings.selectFields(headers.toArray(new String[0]));
+        parserSettings.setInputBufferSize(bufferSize);
 
-        if (headers.size() == totalCols && !Character.isWhitespace(delimiterChar)) {
-            settings.serverSetting("format_csv_delimiter", delimiter);
+        CsvParser parser = new CsvParser(parserSettings);
+        parser.beginParsing(new BufferedReader(new InputStreamReader(inputStream), bufferSize));
+
+        RowValidator validator = columnTypes == null ? null : new RowValidator(headers, columnTypes);
+
+        try {
+            headerSink.accept(parser.getContext().selectedHeaders());
+
+            String[] row;
+            long parseStart = System.nanoTime();
+            while ((row = parser.parseNext()) != null) {
+                if (budget != null)
+                    budget.parsed();
+
+                String problem = validator == null ? null : validator.validate(row);
+                parseNanos.addAndGet(System.nanoTime() - parseStart);
+
+                if (problem != null) {
+                    quarantine.reject(sourceName, parser.getContext().currentLine(), problem, row);
+                    budget.rejected(parser.getContext().currentLine(), problem);
+                } else {
+                    rowSink.accept(row);
+                }
+                parseStart = System.nanoTime();
+            }
 
-            clickHouseService.getClient()
-                    .insert(quote(tableName), inputStream, ClickHouseFormat.CSVWithNames, settings)
-                    .get();
-        } else {
-            clickHouseService.getClient()
-                    .insert(quote(tableName), writer, ClickHouseFormat.CSVWithNames, settings)
-                    .get();
+            // Checked again with the server's skips once the insert is done
+            if (budget != null)
+                budget.checkRatio();
+        } finally {
+            parser.stopParsing();
         }
+    }
+
+    private long recordInsert(String tableName, InsertResponse response, long wallNanos, long parseNanos) {
+        long serverNanos = response.getServerTime();
+        if (operation != null)
+            operation.addCompleted(response.getWrittenRows(), response.getWrittenBytes());
+
+        TransferMetrics.recordTransfer(TransferMetrics.UPLOAD, response.getWrittenRows(), response.getWrittenBytes());
+        TransferMetrics.recordPhase(TransferMetrics.UPLOAD, "parse", parseNanos);
+        TransferMetrics.recordPhase(TransferMetrics.UPLOAD, "server", serverNanos);
+        TransferMetrics.recordPhase(TransferMetrics.UPLOAD, "network", wallNanos - parseNanos - serverNanos);
+
+        log.info("Inserted {} rows ({} bytes) into {} in {} ms", response.getWrittenRows(),
+                response.getWrittenBytes(), tableName, wallNanos / 1_000_000);
+        return response.getWrittenRows();
+    }
+
+    public interface StreamSource {
+        InputStream open() throws IOException;
+    }
+
+    public interface StagedLoad {
+        long load(UploadConfig staged) throws Exception;
+    }
+
+    /**
+     * Reloads the target table through a shadow copy: the load runs against an empty table
+     * created AS the target, and only once its row count matches what was written (and
+     * {@code expectedRows}, if given) it replaces the target, by EXCHANGE TABLES for a "table"
+     * reload or REPLACE PARTITION for a "partitions" reload. Readers never see a partially
+     * loaded table or partition, and a failed load is discarded with a single DROP. A
+     * "partitions" reload is atomic per partition only, see
+     * {@link ClickHouseService#replacePartitions}. For Replicated tables the shadow only gets its
+     * own replication path when the table's path uses the {table} or {uuid} macro.
+     */
+    public long reloadTable(UploadConfig config, StagedLoad load) throws Exception {
+        String mode = config.getReloadMode().toLowerCase();
+        if (!mode.equals("table") && !mode.equals("partitions"))
+            throw new IllegalArgumentException("Unknown reload mode: " + config.getReloadMode());
+
+        String shadow = clickHouseService.createShadowTable(config.getTableName());
+        long rows;
+        try {
+            UploadConfig staged = new UploadConfig(config);
+            staged.setTableName(shadow);
+            staged.setReloadMode(null);
+
+            long written = load.load(staged);
+            rows = clickHouseService.getTotalRows(shadow);
+
+            if (rows != written)
+                throw new IllegalStateException("Reload aborted, " + written + " rows were written but "
+                        + rows + " arrived in the staging table");
+            if (config.getExpectedRows() != null && rows != config.getExpectedRows())
+                throw new IllegalStateException("Reload aborted, expected " + config.getExpectedRows()
+                        + " rows but loaded " + rows);
+            if (config.getExpectedRows() == null && rows == 0)
+                throw new IllegalStateException("Reload aborted, the data is empty (set expectedRows to 0 to allow this)");
+
+            if (mode.equals("table")) {
+                clickHouseService.exchangeTables(config.getTableName(), shadow);
+            } else {
+                Set<String> partitions = new TreeSet<>(clickHouseService.getPartitionIds(shadow));
+                List<String> requested = config.getReloadPartitions();
+
+                if (requested != null && !requested.isEmpty()) {
+                    if (!requested.containsAll(partitions))
+                        throw new IllegalStateException("Reload aborted, rows fall outside the requested partitions " + requested);
+                    partitions.addAll(requested);
+                }
+                if (!partitions.isEmpty())
+                    clickHouseService.replacePartitions(config.getTableName(), shadow, partitions);
+            }
+        } catch (Exception e) {
+            try {
+                clickHouseService.dropTable(shadow);
+            } catch (Exception dropFailure) {
+                e.addSuppressed(dropFailure);
+            }
+            throw e;
+        }
+
+        // After an exchange the shadow holds the previous data. The reload itself is done, so
+        // a failed cleanup only leaves the shadow behind for someone to drop
+        try {
+            clickHouseService.dropTable(shadow);
+        } catch (Exception e) {
+            log.warn("Reload of {} succeeded but its staging table {} could not be dropped: {}",
+                    config.getTableName(), shadow, e.getMessage());
+        }
+        return rows;
+    }
+
+    /**
+     * Ingests several files into the same table concurrently, at most {@code parallelism} at a
+     * time, all sharing this service's client. Every file gets its own insert so one bad file
+     * does not fail the others, except in a reload, which is only swapped in when every file
+     * succeeded.
+     */
+    public List<FileIngestResult> ingestFiles(
+            Map<String, StreamSource> sources,
+            UploadConfig config,
+            int parallelism
+    ) throws Exception {
+        if (config.getReloadMode() != null) {
+            List<FileIngestResult> results = new ArrayList<>();
+            reloadTable(config, staged -> {
+                results.addAll(ingestFiles(sources, staged, parallelism));
+
+                List<FileIngestResult> failed = results.stream().filter(r -> !r.isSuccess()).toList();
+                if (!failed.isEmpty())
+                    throw new IllegalStateException("Reload aborted, " + failed.size() + " of " + results.size()
+                            + " files failed, first: " + failed.getFirst().getFileName() + ": " + failed.getFirst().getMessage());
+
+                return results.stream().mapToLong(FileIngestResult::getLines).sum();
+            });
+            return results;
+        }
+
+        List<String> headers = new ArrayList<>(config.getColumnTypes().keySet());
+        List<Callable<FileIngestResult>> tasks = new ArrayList<>();
+
+        for (Map.Entry<String, StreamSource> source : sources.entrySet()) {
+            tasks.add(() -> {
+                try (InputStream in = source.getValue().open()) {
+                    long lines = ingestDataFromStream(config.getTotalCols(), config.getTableName(), headers,
+                            config.getDelimiter(), in, Map.of(), source.getKey());
+
+                    return new FileIngestResult(source.getKey(), lines, true, "Upload successful");
+                } catch (Exception e) {
+                    Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                    return new FileIngestResult(source.getKey(), 0, false, "Error: " + cause.getMessage());
+                }
+            });
+        }
+
+        List<FileIngestResult> results = new ArrayList<>();
+        try (ExecutorService pool = Executors.newFixedThreadPool(parallelism)) {
+            for (Future<FileIngestResult> f : pool.invokeAll(tasks))
+                results.add(f.resultNow());
+        }
+
+        return results;
+    }
+
+    /**
+     * Ingests a file that is already on the server's disk. The file is split into up to
+     * {@code parallelism} record-aligned byte ranges, each read through memory-mapped windows
+     * and sent as its own insert with the header line prepended, so neither an HTTP upload nor
+     * multipart spooling is involved.
+     */
+    public List<FileIngestResult> ingestLocalFile(Path file, UploadConfig config, int parallelism) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long dataStart = CsvRanges.headerEnd(channel);
+            byte[] header = new byte[(int) dataStart];
+            channel.read(ByteBuffer.wrap(header), 0);
+
+            List<Long> bounds = CsvRanges.split(channel, dataStart, channel.size(), parallelism);
 
-        return clickHouseService.getTotalRows(tableName) - beforeIngest;
+            Map<String, StreamSource> sources = new LinkedHashMap<>();
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                long start = bounds.get(i);
+                long end = bounds.get(i + 1);
+
+                sources.put(file.getFileName() + " [" + start + ", " + end + ")", () -> new SequenceInputStream(
+                        new ByteArrayInputStream(header), new MappedRangeInputStream(channel, start, end)));
+            }
+
+            return ingestFiles(sources, config, parallelism);
+        }
     }
 
+    /**
+     * Streams the export query into the given output stream and returns the number of CSV
+     * records written (header included). Records are counted on the fly because with filters,
+     * limits or sampling the table row count no longer matches what was exported, and the
+     * query summary is sent before the result is streamed. A line break inside a quoted field
+     * does not end a record.
+     */
     public long streamDataToOutputStream(
             SelectedColumnsQueryConfig config,
             OutputStream outputStream) throws Exception {
 
         String sql =
-                clickHouseService.getJoinedQuery(config.getTableName(), config.getColumns(), config.getJoinTables())   // Getting joined query
+                ClickHouseService.buildSelectQuery(config)   // Getting joined query with pushed down filters
                 + " FORMAT CSVWithNames SETTINGS format_csv_delimiter = '"
                 + ClickHouseService.convertStringToChar(config.getDelimiter()) + "';";
 
-        var response = clickHouseService.getClient()
-                .query(sql)
+        QuerySettings settings = new QuerySettings();
+        ClickHouseService.buildQuerySettings(config).forEach(settings::serverSetting);
+
+        settings.setQueryId(clickHouseService.nextQueryId());
+
+        Timer.Sample sample = TransferMetrics.start();
+        long records = 0;
+        long bytes = 0;
+        boolean quoted = false;
+        try (QueryResponse response = clickHouseService.getClient()
+                .query(sql, settings)
                 .get();
+             // Not throttled here, an export is shaped once, where it is sent to the client
+             InputStream csvStream = response.getInputStream()) {
+            byte[] buffer = new byte[131072]; // 128 KB buffer size
+
+            int read;
+            while ((read = csvStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+                bytes += read;
 
-        try (InputStream csvStream = response.getInputStream()) {
-            csvStream.transferTo(outputStream);
+                // Quotes inside a field are doubled, so the parity tells whether a newline is data
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '"')
+                        quoted = !quoted;
+                    else if (buffer[i] == '\n' && !quoted)
+                        ++records;
+                }
+            }
             outputStream.flush();
+        } finally {
+            TransferMetrics.recordQuery("export", sample);
+            TransferMetrics.recordTransfer(TransferMetrics.EXPORT, Math.max(0, records - 1), bytes);
         }
 
-        return 1 + clickHouseService.getTotalRows(config.getTableName());
+        log.info("Exported {} rows ({} bytes) from {}", Math.max(0, records - 1), bytes, config.getTableName());
+        return records;
+    }
+
+    /**
+     * Streams the export rows as newline delimited JSON straight from the ClickHouse response.
+     * Only one buffer is held at a time and it is flushed to the client per chunk. A slow
+     * consumer makes the write block, so this stops reading, the ClickHouse socket fills up and
+     * the server pauses the query. The result is never buffered in the JVM.
+     */
+    public void streamRows(SelectedColumnsQueryConfig config, ClickHouseFormat format, OutputStream outputStream) throws Exception {
+        if (format != ClickHouseFormat.JSONEachRow && format != ClickHouseFormat.JSONCompactEachRow)
+            throw new IllegalArgumentException("Streaming supports JSONEachRow and JSONCompactEachRow only");
+
+        QuerySettings settings = new QuerySettings().setFormat(format);
+        ClickHouseService.buildQuerySettings(config).forEach(settings::serverSetting);
+
+        settings.setQueryId(clickHouseService.nextQueryId());
+
+        Timer.Sample sample = TransferMetrics.start();
+        long lines = 0;
+        long bytes = 0;
+        try (QueryResponse response = clickHouseService.getClient()
+                .query(ClickHouseService.buildSelectQuery(config), settings)
+                .get();
+             InputStream rows = throttle(response.getInputStream())) {
+            byte[] buffer = new byte[65536];
+
+            int read;
+            while ((read = rows.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+                outputStream.flush();
+                bytes += read;
+
+                // Both formats write exactly one row per line
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n')
+                        ++lines;
+                }
+            }
+        } finally {
+            TransferMetrics.recordQuery("stream", sample);
+            TransferMetrics.recordTransfer(TransferMetrics.EXPORT, lines, bytes);
+        }
+    }
+
+    private static List<String> getExportTables(SelectedColumnsQueryConfig config) {
+        List<String> tables = new ArrayList<>();
+        tables.add(config.getTableName());
+
+        if (config.getJoinTables() != null)
+            config.getJoinTables().forEach(jt -> tables.add(jt.getTableName()));
+
+        return tables;
+    }
+
+    private static String exportCacheKey(SelectedColumnsQueryConfig config, ExportCacheService exportCache) {
+        return exportCache.cacheKey(config.getConnection(),
+                ClickHouseService.buildSelectQuery(config) + ClickHouseService.buildQuerySettings(config),
+                "CSVWithNames " + config.getDelimiter());
+    }
+
+    /**
+     * ETag the export has in the cache for the current version of its tables, null when they
+     * have no version. A client that still has this version gets a 304 without anything being
+     * exported, even when the cache entry itself was evicted in the meantime.
+     */
+    public String currentEtag(SelectedColumnsQueryConfig config, ExportCacheService exportCache) {
+        String version = clickHouseService.getTablesVersion(getExportTables(config));
+        return version == null ? null : ExportCacheService.etag(exportCacheKey(config, exportCache), version);
+    }
+
+    /**
+     * The cached artifact of this export for the current version of its tables, if there is one.
+     */
+    public Optional<ExportCacheService.Lease> lookupExport(SelectedColumnsQueryConfig config, ExportCacheService exportCache) {
+        String version = clickHouseService.getTablesVersion(getExportTables(config));
+        return version == null ? Optional.empty() : exportCache.lookup(exportCacheKey(config, exportCache), version);
+    }
+
+    /**
+     * Materializes an export into the export cache, or returns the cached artifact when the same
+     * query already ran against the same version of its tables. The lease keeps the file on
+     * disk until the caller is done with it.
+     */
+    public ExportCacheService.Lease exportToCache(SelectedColumnsQueryConfig config, ExportCacheService exportCache) throws Exception {
+        String cacheKey = exportCacheKey(config, exportCache);
+        String version = clickHouseService.getTablesVersion(getExportTables(config));
+
+        if (version != null) {
+            Optional<ExportCacheService.Lease> cached = exportCache.lookup(cacheKey, version);
+            if (cached.isPresent())
+                return cached.get();
+        }
+
+        // Creating temp file and writing to it
+        long lineCount;
+        Path path = exportCache.newTempFile(config.getTableName() + "_export");
+        try (OutputStream outStream = Files.newOutputStream(path)) {
+            lineCount = streamDataToOutputStream(config, outStream);
+        } catch (Exception e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+
+        return exportCache.store(cacheKey, version, path, lineCount);
+    }
+
+    /**
+     * Runs the exports concurrently, at most {@code parallelism} at a time, and writes each one
+     * into the ZIP as soon as it is finished. Only the individual exports are staged on disk,
+     * never the archive. A failed export becomes a small error entry instead of breaking the
+     * archive that is already being sent.
+     * <p>
+     * Nothing starts before the body runs. Every finished export stays leased until it is in
+     * the archive, so later exports of the same run cannot evict it from the cache first.
+     */
+    public StreamingResponseBody exportToZip(
+            List<SelectedColumnsQueryConfig> exports,
+            ExportCacheService exportCache,
+            int parallelism
+    ) {
+        return outputStream -> {
+            OutputStream out = throttle(outputStream);
+
+            ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+            CompletionService<ExportCacheService.Lease> completionService = new ExecutorCompletionService<>(pool);
+
+            // Leases not yet in the archive, released by whoever sees the run end first
+            Set<ExportCacheService.Lease> open = ConcurrentHashMap.newKeySet();
+            AtomicBoolean abandoned = new AtomicBoolean(false);
+
+            Map<Future<ExportCacheService.Lease>, String> entryNames = new HashMap<>();
+            Set<String> usedNames = new HashSet<>();
+            for (SelectedColumnsQueryConfig export : exports) {
+                String base = export.getTableName().replaceAll("[^a-zA-Z0-9-_]", "_");
+                String name = base;
+                for (int i = 2; !usedNames.add(name); i++)
+                    name = base + "_" + i;
+
+                entryNames.put(completionService.submit(() -> {
+                    ExportCacheService.Lease lease = exportToCache(export, exportCache);
+                    open.add(lease);
+                    if (abandoned.get())
+                        lease.close();
+                    return lease;
+                }), name);
+            }
+
+            try (ZipOutputStream zip = new ZipOutputStream(out)) {
+                for (int i = 0; i < exports.size(); i++) {
+                    Future<ExportCacheService.Lease> done = completionService.take();
+                    String name = entryNames.get(done);
+
+                    try (ExportCacheService.Lease lease = done.get();
+                         FileChannel channel = FileChannel.open(lease.getArtifact().getPath(), StandardOpenOption.READ)) {
+                        open.remove(lease);
+
+                        zip.putNextEntry(new ZipEntry(name + ".csv"));
+                        RangeFileWriter.transfer(channel, 0, lease.getArtifact().getSize(), zip);
+                        zip.closeEntry();
+                    } catch (ExecutionException e) {
+                        writeErrorEntry(zip, name, String.valueOf(e.getCause().getMessage()));
+                    } catch (NoSuchFileException e) {
+                        // Opened before the entry starts, so the archive is still intact
+                        writeErrorEntry(zip, name, "Export file is no longer available: " + e.getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Bulk export interrupted", e);
+            } finally {
+                // Also stops the remaining exports when the client went away mid archive
+                pool.shutdownNow();
+                abandoned.set(true);
+                open.forEach(ExportCacheService.Lease::close);
+            }
+        };
+    }
+
+    private static void writeErrorEntry(ZipOutputStream zip, String name, String message) throws IOException {
+        zip.putNextEntry(new ZipEntry(name + ".error.txt"));
+        zip.write(message.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
     }
 }
@@ -0,0 +1,429 @@
+package org.example.bidirectional.service;
+
+import jakarta.annotation.PreDestroy;
+import org.example.bidirectional.config.ConnectionConfig;
+import org.example.bidirectional.exception.NotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Server side progress of uploads and exports, published as Server-Sent Events. Every query of
+ * an operation runs with a query_id of the form {@code <operation id>-<random>:<n>}, unique even
+ * when another client or another instance uses the same operation id, and while someone
+ * is subscribed the operation's system.processes rows are polled once per
+ * {@code config.progress.interval}, no matter how many subscribers there are. Events are only
+ * sent when a value changed.
+ * <p>
+ * A client picks the operation id itself (X-Operation-Id) and may subscribe before it starts
+ * the request, so a subscription to an unknown id waits for the operation to show up. Without
+ * the header an id is generated and returned to the client. Operations belong to the server
+ * and credentials of the connection that started them (see {@link #owner}). Following,
+ * listing and cancelling them needs the same connection, and the same id used by different
+ * owners names different operations.
+ * <p>
+ * The same query ids are used to stop abandoned work with KILL QUERY: when the operation is
+ * cancelled through the API, when the first progress subscriber of it went away (the tab that
+ * started it was closed) and did not come back within {@code config.operations.disconnect-grace},
+ * when it runs longer than {@code config.operations.max-duration}, and when its request ends
+ * without success while queries are still running.
+ */
+@Service
+public class ProgressService {
+    private static final Logger log = LoggerFactory.getLogger(ProgressService.class);
+
+    @Value("${config.progress.interval}")
+    private Duration interval;
+
+    @Value("${config.progress.retention}")
+    private Duration retention;
+
+    @Value("${config.operations.max-duration}")
+    private Duration maxDuration;
+
+    @Value("${config.operations.disconnect-grace}")
+    private Duration disconnectGrace;
+
+    private static final Pattern OPERATION_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("progress").daemon().factory());
+    private ScheduledFuture<?> poller;
+
+    public enum State { PENDING, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+    /**
+     * A tracked upload or export, closed when the request is done. Unless {@link #succeeded()}
+     * was called before, closing marks it as failed, or cancelled after {@link #cancel}; the
+     * error itself is in the response of the request.
+     */
+    public class Operation implements AutoCloseable {
+        private final String owner;
+        private final String id;
+        private final String queryIdPrefix;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final Instant created = Instant.now();
+        private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+
+        // Rows and bytes of inserts that already finished, system.processes forgets them
+        private final AtomicLong completedRows = new AtomicLong();
+        private final AtomicLong completedBytes = new AtomicLong();
+
+        private volatile State state = State.PENDING;
+        private volatile String kind;
+        private volatile ClickHouseService clickHouseService;
+        private volatile long totalBytes;
+        private volatile Instant started;
+        private volatile Instant finished;
+        private volatile boolean success;
+        private volatile String cancelReason;
+
+        // The subscriber that followed it first, only its disconnect cancels the operation
+        private SseEmitter initiator;
+        private Instant initiatorLost;
+
+        private long readRows, readBytes, writtenRows, writtenBytes, totalRows;
+        private List<Object> lastSent;
+
+        private Operation(String owner, String id) {
+            this.owner = owner;
+            this.id = id;
+            this.queryIdPrefix = id + "-" + UUID.randomUUID();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        private void unsubscribe(SseEmitter emitter) {
+            emitters.remove(emitter);
+            synchronized (this) {
+                if (initiator == emitter) {
+                    initiator = null;
+                    initiatorLost = Instant.now();
+                }
+            }
+        }
+
+        public void attach(ClickHouseService clickHouseService) {
+            clickHouseService.setQueryIdPrefix(queryIdPrefix);
+            this.clickHouseService = clickHouseService;
+        }
+
+        public void addCompleted(long rows, long bytes) {
+            completedRows.addAndGet(rows);
+            completedBytes.addAndGet(bytes);
+        }
+
+        public void succeeded() {
+            success = true;
+        }
+
+        /**
+         * Kills the running queries of the operation. The request sees them fail and unwinds
+         * as usual, its final state is CANCELLED. Returns false when it is not running.
+         */
+        public boolean cancel(String reason) {
+            synchronized (this) {
+                if (state != State.RUNNING || cancelReason != null)
+                    return false;
+                cancelReason = reason;
+            }
+
+            log.info("Cancelling operation {}: {}", id, reason);
+            killQueries();
+            return true;
+        }
+
+        private void killQueries() {
+            ClickHouseService service = clickHouseService;
+            if (service == null)
+                return;
+
+            try {
+                service.killQueries(queryIdPrefix + ":");
+            } catch (Exception e) {
+                log.warn("Failed to kill the queries of operation {}: {}", id, e.getMessage());
+            }
+        }
+
+        /**
+         * Closing it again, e.g. from the async completion of a streamed response, does nothing.
+         */
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+
+            // Parallel workers or a query the client stopped reading can outlive a failed request
+            if (!success && cancelReason == null)
+                killQueries();
+
+            finished = Instant.now();
+            state = success ? State.SUCCEEDED : cancelReason != null ? State.CANCELLED : State.FAILED;
+
+            publish(this, true);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Who an operation belongs to: the server and the credentials of its connection. Only a
+     * caller that has the same credentials can produce the same owner.
+     */
+    public static String owner(ConnectionConfig connection) {
+        return ExportCacheService.sha256Hex(String.join("\n",
+                connection.getHost() + ":" + connection.getPort(),
+                String.valueOf(connection.getUsername()),
+                String.valueOf(connection.getAuthType()),
+                String.valueOf(connection.getJwt()),
+                String.valueOf(connection.getPassword())));
+    }
+
+    private static String key(String owner, String operationId) {
+        return owner + "/" + operationId;
+    }
+
+    /**
+     * Registers a running operation, under a generated id when the client did not pick one.
+     */
+    public Operation start(ConnectionConfig connection, String operationId, String kind, long totalBytes) {
+        if (operationId == null)
+            operationId = UUID.randomUUID().toString();
+        else if (!OPERATION_ID.matcher(operationId).matches())
+            throw new IllegalArgumentException("Operation id must be 1-64 letters, digits, '-' or '_'");
+
+        String owner = owner(connection);
+        String id = operationId;
+        Operation operation = operations.compute(key(owner, id), (_, existing) -> {
+            if (existing != null && existing.state == State.RUNNING)
+                throw new IllegalArgumentException("Operation " + id + " is already running");
+
+            // A pending one may have subscribers waiting, a finished id may be used again
+            return existing == null || existing.finished != null || existing.emitters.isEmpty()
+                    ? new Operation(owner, id)
+                    : existing;
+        });
+
+        synchronized (operation) {
+            operation.kind = kind;
+            operation.totalBytes = totalBytes;
+            operation.started = Instant.now();
+            operation.state = State.RUNNING;
+        }
+
+        ensurePolling();
+        return operation;
+    }
+
+    /**
+     * Subscribes to an operation's progress. The stream ends after the final event. The first
+     * subscriber, or the first one after it went away, is the one whose disconnect cancels.
+     */
+    public SseEmitter subscribe(ConnectionConfig connection, String operationId) {
+        if (!OPERATION_ID.matcher(operationId).matches())
+            throw new NotFoundException("No such operation: " + operationId);
+
+        String owner = owner(connection);
+        Operation operation = operations.computeIfAbsent(key(owner, operationId), _ -> new Operation(owner, operationId));
+
+        // No timeout, the stream lasts as long as the operation
+        SseEmitter emitter = new SseEmitter(0L);
+        emitter.onCompletion(() -> operation.unsubscribe(emitter));
+        emitter.onError(_ -> operation.unsubscribe(emitter));
+        operation.emitters.add(emitter);
+
+        synchronized (operation) {
+            if (operation.initiator == null) {
+                operation.initiator = emitter;
+                operation.initiatorLost = null;
+            }
+            operation.lastSent = null;
+        }
+        publish(operation, operation.finished != null);
+        ensurePolling();
+        return emitter;
+    }
+
+    /**
+     * Every operation of this owner that is running or finished within the retention, oldest
+     * first.
+     */
+    public List<Map<String, Object>> list(ConnectionConfig connection) {
+        String owner = owner(connection);
+        return operations.values().stream()
+                .filter(operation -> operation.owner.equals(owner))
+                .filter(operation -> operation.state != State.PENDING)
+                .sorted(Comparator.comparing(operation -> operation.started))
+                .map(ProgressService::snapshot)
+                .toList();
+    }
+
+    public Map<String, Object> cancel(ConnectionConfig connection, String operationId) {
+        Operation operation = operations.get(key(owner(connection), operationId));
+        if (operation == null || operation.state == State.PENDING)
+            throw new NotFoundException("No such operation: " + operationId);
+
+        if (!operation.cancel("Cancelled through the API"))
+            throw new IllegalArgumentException("Operation " + operationId + " is not running");
+
+        return snapshot(operation);
+    }
+
+    private synchronized void ensurePolling() {
+        if (poller == null)
+            poller = scheduler.scheduleWithFixedDelay(this::poll, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        Instant cutoff = Instant.now().minus(retention);
+
+        for (Operation operation : operations.values()) {
+            Instant last = operation.finished != null ? operation.finished : operation.created;
+            if (operation.state != State.RUNNING && last.isBefore(cutoff)) {
+                operations.remove(key(operation.owner, operation.id), operation);
+                operation.emitters.forEach(SseEmitter::complete);
+                continue;
+            }
+
+            if (operation.state != State.RUNNING)
+                continue;
+
+            if (!maxDuration.isZero() && operation.started.isBefore(Instant.now().minus(maxDuration))) {
+                operation.cancel("Running longer than " + maxDuration);
+                continue;
+            }
+
+            // Nobody is listening, so there is no reason to ask the server
+            if (!operation.emitters.isEmpty() && operation.clickHouseService != null) {
+                try {
+                    long[] live = operation.clickHouseService.getQueryProgress(operation.queryIdPrefix + ":");
+                    update(operation, live);
+                } catch (RuntimeException e) {
+                    // Progress is best effort, the operation itself reports real failures
+                }
+
+                // A closed connection only shows on write, so something is written every poll
+                if (!publish(operation, false))
+                    heartbeat(operation);
+            }
+
+            // Whoever started it was watching it and did not come back, nobody is waiting for the
+            // result. The grace period covers reloads and brief network drops
+            Instant lost;
+            synchronized (operation) {
+                lost = operation.initiatorLost;
+            }
+            if (lost != null && lost.isBefore(Instant.now().minus(disconnectGrace)))
+                operation.cancel("The progress subscriber that started it disconnected");
+        }
+    }
+
+    private static void heartbeat(Operation operation) {
+        for (SseEmitter emitter : operation.emitters) {
+            try {
+                emitter.send(SseEmitter.event().comment("heartbeat"));
+            } catch (IOException | IllegalStateException e) {
+                operation.unsubscribe(emitter);
+            }
+        }
+    }
+
+    /**
+     * Folds a system.processes sample into the operation. Values only grow, a query that just
+     * finished drops out of system.processes before its rows are added as completed.
+     */
+    private static void update(Operation operation, long[] live) {
+        synchronized (operation) {
+            operation.readRows = Math.max(operation.readRows, live[0]);
+            operation.readBytes = Math.max(operation.readBytes, live[1]);
+            operation.writtenRows = Math.max(operation.writtenRows, operation.completedRows.get() + live[2]);
+            operation.writtenBytes = Math.max(operation.writtenBytes, operation.completedBytes.get() + live[3]);
+            operation.totalRows = Math.max(operation.totalRows, live[4]);
+        }
+    }
+
+    /**
+     * Sends the current state to every subscriber, returns false when it was sent before.
+     */
+    private boolean publish(Operation operation, boolean last) {
+        Map<String, Object> snapshot = snapshot(operation);
+
+        // Time based fields change on every poll, only a change in progress is worth an event
+        List<Object> progress = Arrays.asList(snapshot.get("state"), snapshot.get("readRows"),
+                snapshot.get("readBytes"), snapshot.get("writtenRows"), snapshot.get("writtenBytes"));
+        synchronized (operation) {
+            if (!last && progress.equals(operation.lastSent))
+                return false;
+            operation.lastSent = progress;
+        }
+
+        for (SseEmitter emitter : operation.emitters) {
+            try {
+                emitter.send(SseEmitter.event().name(last ? "end" : "progress").data(snapshot));
+                if (last)
+                    emitter.complete();
+            } catch (IOException | IllegalStateException e) {
+                operation.unsubscribe(emitter);
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, Object> snapshot(Operation operation) {
+        synchronized (operation) {
+            long writtenRows = Math.max(operation.writtenRows, operation.completedRows.get());
+            long writtenBytes = Math.max(operation.writtenBytes, operation.completedBytes.get());
+
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("operationId", operation.id);
+            snapshot.put("kind", operation.kind);
+            snapshot.put("state", operation.state);
+            snapshot.put("readRows", operation.readRows);
+            snapshot.put("readBytes", operation.readBytes);
+            snapshot.put("writtenRows", writtenRows);
+            snapshot.put("writtenBytes", writtenBytes);
+            snapshot.put("totalRows", operation.totalRows);
+            snapshot.put("totalBytes", operation.totalBytes);
+            if (operation.cancelReason != null)
+                snapshot.put("cancelReason", operation.cancelReason);
+
+            if (operation.started != null) {
+                Instant end = operation.finished != null ? operation.finished : Instant.now();
+                double seconds = Math.max(0.001, Duration.between(operation.started, end).toMillis() / 1000.0);
+                long rows = Math.max(operation.readRows, writtenRows);
+                double rowsPerSecond = rows / seconds;
+
+                // Exports know their total rows from the server estimate, uploads their size
+                Double eta = null;
+                if (operation.state == State.RUNNING) {
+                    if (operation.totalRows > 0 && operation.readRows > 0)
+                        eta = Math.max(0, operation.totalRows - operation.readRows) / (operation.readRows / seconds);
+                    else if (operation.totalBytes > 0 && operation.readBytes > 0)
+                        eta = Math.max(0, operation.totalBytes - operation.readBytes) / (operation.readBytes / seconds);
+                }
+
+                snapshot.put("elapsedSeconds", Math.round(seconds * 10) / 10.0);
+                snapshot.put("rowsPerSecond", Math.round(rowsPerSecond));
+                snapshot.put("etaSeconds", eta == null ? null : Math.round(eta));
+            }
+            return snapshot;
+        }
+    }
+}
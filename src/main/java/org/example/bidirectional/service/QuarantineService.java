@@ -0,0 +1,162 @@
+package org.example.bidirectional.service;
+
+import com.univocity.parsers.csv.CsvWriter;
+import com.univocity.parsers.csv.CsvWriterSettings;
+import jakarta.annotation.PostConstruct;
+import org.example.bidirectional.exception.NotFoundException;
+import org.example.bidirectional.util.TransferMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rows rejected by tolerant uploads. Every upload gets its own CSV file with the source file,
+ * line number and reason in front of the rejected values, downloadable by id until it is older
+ * than {@code config.ingest.quarantine-retention}.
+ */
+@Service
+public class QuarantineService {
+    @Value("${config.ingest.quarantine-dir}")
+    private Path quarantineDir;
+
+    @Value("${config.ingest.quarantine-retention}")
+    private Duration retention;
+
+    private final Map<String, Quarantine> quarantines = new ConcurrentHashMap<>();
+
+    public static class Quarantine implements Closeable {
+        private final String id;
+        private final Path path;
+        private final Instant created = Instant.now();
+        private final CsvWriter writer;
+        private long rows = 0;
+        private long serverRows = 0;
+
+        Quarantine(String id, Path path, List<String> columns) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.writer = new CsvWriter(new BufferedWriter(new OutputStreamWriter(
+                    Files.newOutputStream(path), StandardCharsets.UTF_8)), new CsvWriterSettings());
+
+            List<String> headers = new ArrayList<>(List.of("file", "line", "reason"));
+            headers.addAll(columns);
+            writer.writeHeaders(headers);
+        }
+
+        /**
+         * Called from the parser threads of every file in the upload, hence synchronized.
+         */
+        public synchronized void reject(String file, long line, String reason, String[] values) {
+            Object[] row = new Object[3 + values.length];
+            row[0] = file;
+            row[1] = line;
+            row[2] = reason;
+            System.arraycopy(values, 0, row, 3, values.length);
+
+            writer.writeRow(row);
+            rows++;
+        }
+
+        public synchronized long getRows() {
+            return rows;
+        }
+
+        /**
+         * Rows the server skipped through input_format_allow_errors_*. They never reach the
+         * client, so only their count is kept.
+         */
+        public synchronized void addServerRejected(long count) {
+            serverRows += count;
+        }
+
+        public synchronized long getServerRows() {
+            return serverRows;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public synchronized void close() {
+            writer.close();
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(quarantineDir);
+        TransferMetrics.gauge("bidirectional.temp.disk.usage", this, QuarantineService::getTotalSize, "area", "quarantine");
+
+        // Nothing is indexed across restarts, so anything left over is orphaned
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(quarantineDir)) {
+            for (Path file : files)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    public Quarantine create(List<String> columns) throws IOException {
+        expire();
+
+        String id = UUID.randomUUID().toString();
+        Quarantine quarantine = new Quarantine(id, quarantineDir.resolve(id + ".csv"), columns);
+        quarantines.put(id, quarantine);
+        return quarantine;
+    }
+
+    /**
+     * Closes the file and keeps it only when rows were rejected. Returns whether it was kept.
+     */
+    public boolean finish(Quarantine quarantine) throws IOException {
+        quarantine.close();
+        if (quarantine.getRows() > 0)
+            return true;
+
+        quarantines.remove(quarantine.getId());
+        Files.deleteIfExists(quarantine.getPath());
+        return false;
+    }
+
+    public long getTotalSize() {
+        long size = 0;
+        for (Quarantine quarantine : quarantines.values()) {
+            try {
+                size += Files.size(quarantine.getPath());
+            } catch (IOException _) {
+                // Expired in the meantime
+            }
+        }
+        return size;
+    }
+
+    public Path get(String id) {
+        Quarantine quarantine = quarantines.get(id);
+        if (quarantine == null || !Files.exists(quarantine.getPath()))
+            throw new NotFoundException("Quarantine file not found or expired: " + id);
+
+        return quarantine.getPath();
+    }
+
+    private void expire() throws IOException {
+        Instant cutoff = Instant.now().minus(retention);
+        for (Quarantine quarantine : List.copyOf(quarantines.values())) {
+            if (quarantine.created.isBefore(cutoff)) {
+                quarantines.remove(quarantine.getId());
+                Files.deleteIfExists(quarantine.getPath());
+            }
+        }
+    }
+}
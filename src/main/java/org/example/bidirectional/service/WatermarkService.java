@@ -0,0 +1,170 @@
+package org.example.bidirectional.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import org.example.bidirectional.config.ConnectionConfig;
+import org.example.bidirectional.config.SelectedColumnsQueryConfig;
+import org.example.bidirectional.model.FilterCondition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Last exported high-water mark of every incremental export. A selection is identified by the
+ * connection and user, the tables, columns, filters and the watermark column, so two different
+ * selections over the same table advance independently. The user is part of it since row
+ * policies can give two users different rows for the same selection. The marks are kept in a small JSON
+ * file that is replaced atomically on every change and survives restarts.
+ */
+@Service
+public class WatermarkService {
+    @Value("${config.state-dir}")
+    private Path stateDir;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, String> watermarks = new HashMap<>();
+    private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(stateDir);
+
+        Path file = stateDir.resolve("watermarks.json");
+        if (Files.exists(file))
+            watermarks.putAll(mapper.readValue(file.toFile(), new TypeReference<Map<String, String>>() {}));
+    }
+
+    public String key(SelectedColumnsQueryConfig config) {
+        ConnectionConfig connection = config.getConnection();
+        try {
+            return ExportCacheService.sha256Hex(String.join("\n",
+                    connection.getHost() + ":" + connection.getPort(),
+                    connection.getDatabase(),
+                    String.valueOf(connection.getUsername()),
+                    String.valueOf(connection.getAuthType()),
+                    config.getTableName(),
+                    mapper.writeValueAsString(config.getColumns()),
+                    mapper.writeValueAsString(config.getJoinTables()),
+                    mapper.writeValueAsString(config.getFilters()),
+                    mapper.writeValueAsString(config.getPartitionIds()),
+                    config.getWatermarkColumn()));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid export selection", e);
+        }
+    }
+
+    public interface IncrementWriter {
+        /**
+         * Exports and delivers the increment. {@code watermark} is the mark after this run, null
+         * when there are no rows yet. Returns whether the client received the whole increment.
+         */
+        boolean write(SelectedColumnsQueryConfig increment, String previous, String watermark) throws Exception;
+    }
+
+    /**
+     * Exports only the rows past the stored high-water mark of the selection, up to the current
+     * maximum of the watermark column that {@code range} returns as {row count, maximum} for a
+     * lower bound. The new mark is committed only after the writer delivered the whole
+     * increment, so a client that loses the connection gets the same rows again on its next
+     * run. Runs of the same selection wait for each other until then.
+     */
+    public void exportIncrement(
+            SelectedColumnsQueryConfig request,
+            Function<String, String[]> range,
+            IncrementWriter writer
+    ) throws Exception {
+        if (request.getLimit() != null || request.getOffset() != null || request.getSampleRatio() != null)
+            throw new IllegalArgumentException("limit, offset and sampleRatio cannot be used with a watermark column");
+
+        String key = key(request);
+        ReentrantLock lock = lock(key);
+        try {
+            String previous = request.getWatermarkFrom() != null ? request.getWatermarkFrom() : get(key);
+
+            String[] bounds = range.apply(previous);
+            boolean hasRows = Long.parseLong(bounds[0]) > 0;
+
+            // Upper bound is fixed before exporting, rows inserted meanwhile go to the next run.
+            // Without new rows both bounds are equal, which gives a header-only file
+            String lower = hasRows ? previous : (previous != null ? previous : bounds[1]);
+            String upper = hasRows ? bounds[1] : lower;
+
+            boolean delivered = writer.write(increment(request, lower, upper), previous, hasRows ? upper : previous);
+            if (hasRows && delivered)
+                commit(key, upper);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The selection restricted to watermark values in (lower, upper], without a lower bound
+     * when {@code lower} is null.
+     */
+    static SelectedColumnsQueryConfig increment(SelectedColumnsQueryConfig request, String lower, String upper) {
+        List<FilterCondition> filters = new ArrayList<>();
+        if (request.getFilters() != null)
+            filters.addAll(request.getFilters());
+        if (lower != null)
+            filters.add(new FilterCondition(request.getWatermarkColumn(), ">", lower));
+        filters.add(new FilterCondition(request.getWatermarkColumn(), "<=", upper));
+
+        SelectedColumnsQueryConfig increment = new SelectedColumnsQueryConfig(request);
+        increment.setFilters(filters);
+        return increment;
+    }
+
+    /**
+     * Serializes runs of the same selection, otherwise two overlapping runs would both read
+     * from the same mark and export the same rows twice.
+     */
+    private ReentrantLock lock(String key) {
+        ReentrantLock lock = locks.computeIfAbsent(key, _ -> new ReentrantLock());
+        lock.lock();
+        return lock;
+    }
+
+    public synchronized String get(String key) {
+        return watermarks.get(key);
+    }
+
+    /**
+     * Records a new high-water mark, only called once the export up to it is materialized.
+     */
+    public synchronized void commit(String key, String watermark) {
+        String previous = watermarks.put(key, watermark);
+        try {
+            Path temp = Files.createTempFile(stateDir, "watermarks", ".tmp");
+            try {
+                // Forced to disk before the rename, otherwise a power loss can leave an empty file
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    out.write(ByteBuffer.wrap(mapper.writeValueAsBytes(watermarks)));
+                    out.force(true);
+                }
+                Files.move(temp, stateDir.resolve("watermarks.json"),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // Keep memory and disk in agreement, the caller reports the export as failed
+            if (previous == null) watermarks.remove(key);
+            else watermarks.put(key, previous);
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.example.bidirectional.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+
+/**
+ * Charset of a CSV file, detected from its first bytes. A byte order mark decides it (UTF-8,
+ * UTF-16 BE or LE) and is skipped, otherwise the sample is checked to be valid UTF-8 and
+ * anything else is read as windows-1252, the usual spreadsheet export on Windows. Single
+ * byte charsets and UTF-8 keep '"' and '\n' as plain bytes, so their files can be split on
+ * record boundaries by {@link CsvRanges}; UTF-16 files cannot.
+ */
+public final class CsvCharset {
+    public static final int SAMPLE = 64 * 1024;
+
+    private static final Charset WINDOWS_1252 = Charset.forName("windows-1252");
+
+    private final Charset charset;
+    private final int bomLength;
+
+    private CsvCharset(Charset charset, int bomLength) {
+        this.charset = charset;
+        this.bomLength = bomLength;
+    }
+
+    public static CsvCharset detect(byte[] head, int length) {
+        if (length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF)
+            return new CsvCharset(StandardCharsets.UTF_8, 3);
+        if (length >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF)
+            return new CsvCharset(StandardCharsets.UTF_16BE, 2);
+        if (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE)
+            return new CsvCharset(StandardCharsets.UTF_16LE, 2);
+
+        return new CsvCharset(isUtf8(head, length) ? StandardCharsets.UTF_8 : WINDOWS_1252, 0);
+    }
+
+    /**
+     * Detects from the start of the file, the channel position is not changed.
+     */
+    public static CsvCharset detect(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(SAMPLE, channel.size()));
+        int read;
+        do {
+            read = channel.read(head, head.position());
+        } while (read > 0 && head.hasRemaining());
+
+        return detect(head.array(), head.position());
+    }
+
+    /**
+     * Detects from a stream that supports mark, and leaves it positioned after the BOM.
+     */
+    public static CsvCharset detect(InputStream in) throws IOException {
+        if (!in.markSupported())
+            throw new IllegalArgumentException("Charset detection needs a stream that supports mark");
+
+        in.mark(SAMPLE);
+        byte[] head = in.readNBytes(SAMPLE);
+        in.reset();
+
+        CsvCharset detected = detect(head, head.length);
+        in.skipNBytes(detected.bomLength);
+        return detected;
+    }
+
+    private static boolean isUtf8(byte[] head, int length) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        // Not the end of input, so a character cut off at the end of the sample is no error
+        CoderResult result = decoder.decode(ByteBuffer.wrap(head, 0, length), CharBuffer.allocate(length), false);
+        return !result.isError();
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public int getBomLength() {
+        return bomLength;
+    }
+
+    /**
+     * Whether record boundaries can be found by scanning the raw bytes.
+     */
+    public boolean isSplittable() {
+        return charset != StandardCharsets.UTF_16BE && charset != StandardCharsets.UTF_16LE;
+    }
+}
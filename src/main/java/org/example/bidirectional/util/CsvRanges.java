@@ -0,0 +1,111 @@
+package org.example.bidirectional.util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds record boundaries in a CSV file by scanning memory-mapped windows. A newline only ends
+ * a record when it is outside a quoted field, so the scan tracks quote parity from a position
+ * that is known to be a record start. Escaped quotes ("") flip the parity twice and need no
+ * special handling.
+ */
+public class CsvRanges {
+    static final int WINDOW = 64 * 1024 * 1024;
+
+    private CsvRanges() {}
+
+    /**
+     * Returns the offset just past the first complete record, i.e. where the data after the
+     * header starts, or the file size when there is no complete record.
+     */
+    public static long headerEnd(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long[] next = nextBoundaries(channel, 0, size, new long[]{0});
+        return next.length == 0 ? size : next[0];
+    }
+
+    /**
+     * Offset just past the record that starts at {@code start}, or {@code start} when that
+     * record is not complete yet.
+     */
+    public static long recordEnd(FileChannel channel, long start) throws IOException {
+        long[] next = nextBoundaries(channel, start, channel.size(), new long[]{start});
+        return next.length == 0 ? start : next[0];
+    }
+
+    /**
+     * Splits [start, end) into at most {@code parts} ranges that each start and end on a record
+     * boundary. {@code start} must itself be a record boundary. Returns the list of range start
+     * offsets followed by {@code end}.
+     */
+    public static List<Long> split(FileChannel channel, long start, long end, int parts) throws IOException {
+        long length = end - start;
+        long[] targets = new long[Math.max(0, parts - 1)];
+        for (int i = 0; i < targets.length; i++)
+            targets[i] = start + length * (i + 1) / parts;
+
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(start);
+        for (long b : nextBoundaries(channel, start, end, targets)) {
+            if (b > bounds.getLast() && b < end)
+                bounds.add(b);
+        }
+        bounds.add(end);
+
+        return bounds;
+    }
+
+    /**
+     * Offset of the last record boundary in [start, end), or {@code start} when the range holds
+     * no complete record. Used to cut off a trailing record that is still being written.
+     */
+    public static long lastBoundary(FileChannel channel, long start, long end) throws IOException {
+        long last = start;
+        boolean quoted = false;
+
+        for (long pos = start; pos < end; pos += WINDOW) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, end - pos));
+
+            for (int i = 0; i < buffer.limit(); i++) {
+                byte b = buffer.get(i);
+                if (b == '"')
+                    quoted = !quoted;
+                else if (b == '\n' && !quoted)
+                    last = pos + i + 1;
+            }
+        }
+
+        return last;
+    }
+
+    /**
+     * For each target offset (ascending) the first record boundary at or after it.
+     */
+    private static long[] nextBoundaries(FileChannel channel, long start, long end, long[] targets) throws IOException {
+        List<Long> found = new ArrayList<>();
+        boolean quoted = false;
+        int t = 0;
+
+        for (long pos = start; pos < end && t < targets.length; pos += WINDOW) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, end - pos));
+
+            for (int i = 0; i < buffer.limit() && t < targets.length; i++) {
+                byte b = buffer.get(i);
+                if (b == '"') {
+                    quoted = !quoted;
+                } else if (b == '\n' && !quoted && pos + i >= targets[t]) {
+                    found.add(pos + i + 1);
+
+                    // Several targets can fall inside one long record
+                    while (t < targets.length && targets[t] <= pos + i)
+                        t++;
+                }
+            }
+        }
+
+        return found.stream().mapToLong(Long::longValue).toArray();
+    }
+}
@@ -0,0 +1,119 @@
+package org.example.bidirectional.util;
+
+import com.univocity.parsers.csv.CsvParser;
+import com.univocity.parsers.csv.CsvParserSettings;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Parses the records of a byte range of a CSV file. Until parsing has started the range can be
+ * split in two on a record boundary found by {@link CsvRanges}, so a parallel stream parses
+ * parts of the file on different threads and still keeps the records in file order. All parts
+ * read the same channel through their own {@link MappedRangeInputStream}.
+ * <p>
+ * Fields are returned as written: empty ones as "", whitespace kept, any length allowed. A
+ * blank line is a record with one empty field, as opencsv returned it.
+ */
+public class CsvSpliterator implements Spliterator<String[]> {
+    // Finding the split point scans the first half of the range, not worth it for small ones
+    static final long MIN_SPLIT = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final CsvCharset charset;
+    private final char delimiter;
+    private long start;
+    private final long end;
+    private CsvParser parser;
+
+    /**
+     * The whole file after its byte order mark.
+     */
+    public CsvSpliterator(FileChannel channel, CsvCharset charset, char delimiter) throws IOException {
+        this(channel, charset, delimiter, charset.getBomLength(), channel.size());
+    }
+
+    private CsvSpliterator(FileChannel channel, CsvCharset charset, char delimiter, long start, long end) {
+        this.channel = channel;
+        this.charset = charset;
+        this.delimiter = delimiter;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super String[]> action) {
+        if (parser == null) {
+            if (start >= end)
+                return false;
+
+            parser = new CsvParser(parserSettings(delimiter));
+            parser.beginParsing(new MappedRangeInputStream(channel, start, end), charset.getCharset());
+        }
+
+        // The parser closes itself after the last record
+        String[] row = parser.parseNext();
+        if (row == null)
+            return false;
+
+        action.accept(row);
+        return true;
+    }
+
+    @Override
+    public Spliterator<String[]> trySplit() {
+        if (parser != null || !charset.isSplittable() || end - start < MIN_SPLIT)
+            return null;
+
+        List<Long> bounds;
+        try {
+            bounds = CsvRanges.split(channel, start, end, 2);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // One record spans the whole range
+        if (bounds.size() < 3)
+            return null;
+
+        CsvSpliterator prefix = new CsvSpliterator(channel, charset, delimiter, start, bounds.get(1));
+        start = bounds.get(1);
+        return prefix;
+    }
+
+    /**
+     * Bytes left in the range, an upper bound on the records.
+     */
+    @Override
+    public long estimateSize() {
+        return parser == null ? end - start : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+    /**
+     * Parser settings for reading records as described above, also used for uploaded files.
+     */
+    public static CsvParserSettings parserSettings(char delimiter) {
+        CsvParserSettings settings = new CsvParserSettings();
+        settings.getFormat().setDelimiter(delimiter);
+        settings.setLineSeparatorDetectionEnabled(true);
+        settings.setNullValue("");
+        settings.setEmptyValue("");
+        settings.setIgnoreLeadingWhitespaces(false);
+        settings.setIgnoreTrailingWhitespaces(false);
+        settings.setMaxCharsPerColumn(-1);
+        settings.setSkipEmptyLines(false);
+
+        // Parallelism comes from splitting, and an abandoned stream must not leave a thread behind
+        settings.setReadInputOnSeparateThread(false);
+        return settings;
+    }
+}
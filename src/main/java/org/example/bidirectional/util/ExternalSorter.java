@@ -0,0 +1,313 @@
+package org.example.bidirectional.util;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sorts CSV rows by some of their columns with bounded memory. Rows are collected until their
+ * estimated size reaches the run size, then sorted and spilled to a gzip compressed temp file.
+ * {@link #forEachSorted} merges the spilled runs and the rows still in memory in one k-way
+ * merge, so every row is written to disk at most once.
+ * <p>
+ * Values are compared the way ClickHouse orders the column type: numbers numerically (an empty
+ * value is the default 0), enum names by their numeric value, everything else by its text,
+ * which matches ISO dates and date times. NULL sorts last.
+ */
+public class ExternalSorter implements Closeable {
+    private static final Pattern PARAMETERS = Pattern.compile("^(\\w+)\\((.*)\\)$");
+
+    // Object and array headers per field, a rough but stable estimate of the heap used
+    private static final int ROW_OVERHEAD = 64;
+    private static final int FIELD_OVERHEAD = 48;
+
+    private final int[] keyColumns;
+    private final boolean[] numeric;
+    private final Map<String, Integer>[] enums;
+    private final long runBytes;
+
+    private final List<Entry> buffer = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private long bufferedBytes = 0;
+
+    private record Entry(Comparable<?>[] key, String[] row) {}
+
+    public interface RowConsumer {
+        void accept(String[] row) throws IOException;
+    }
+
+    /**
+     * @param keyColumns indexes of the sort columns in each row, most significant first
+     * @param keyTypes   ClickHouse type of each sort column
+     * @param runBytes   estimated heap size of the rows sorted in memory before spilling
+     */
+    @SuppressWarnings("unchecked")
+    public ExternalSorter(int[] keyColumns, List<String> keyTypes, long runBytes) {
+        this.keyColumns = keyColumns;
+        this.numeric = new boolean[keyColumns.length];
+        this.enums = new Map[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            numeric[i] = isNumeric(keyTypes.get(i));
+            enums[i] = enumValues(keyTypes.get(i));
+        }
+        this.runBytes = runBytes;
+    }
+
+    static boolean isNumeric(String type) {
+        Matcher m = PARAMETERS.matcher(type.trim());
+        String name = m.matches() ? m.group(1) : type.trim();
+        if (name.equals("Nullable") || name.equals("LowCardinality"))
+            return isNumeric(m.group(2));
+
+        return name.matches("U?Int\\d+|Float\\d+|Decimal\\d*");
+    }
+
+    /**
+     * Numeric value of every name of an Enum8/Enum16 type, null for other types.
+     */
+    static Map<String, Integer> enumValues(String type) {
+        Matcher m = PARAMETERS.matcher(type.trim());
+        if (!m.matches())
+            return null;
+        if (m.group(1).equals("Nullable") || m.group(1).equals("LowCardinality"))
+            return enumValues(m.group(2));
+        if (!m.group(1).matches("Enum(8|16)?"))
+            return null;
+
+        Map<String, Integer> values = new HashMap<>();
+        Matcher value = RowValidator.ENUM_VALUE.matcher(m.group(2));
+        while (value.find())
+            values.put(value.group(1).replace("\\'", "'"), Integer.parseInt(value.group(2)));
+        return values;
+    }
+
+    /**
+     * Estimated heap size of a parsed row.
+     */
+    public static long sizeOf(String[] row) {
+        long size = ROW_OVERHEAD;
+        for (String value : row)
+            size += FIELD_OVERHEAD + (value == null ? 0 : 2L * value.length());
+        return size;
+    }
+
+    public void add(String[] row) throws IOException {
+        buffer.add(new Entry(key(row), row));
+        bufferedBytes += sizeOf(row);
+
+        if (bufferedBytes >= runBytes)
+            spill();
+    }
+
+    /**
+     * Number of runs spilled to disk so far.
+     */
+    public int getRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Hands every row to the consumer in key order. Can only be called once.
+     */
+    public void forEachSorted(RowConsumer consumer) throws IOException {
+        buffer.sort(this::compare);
+
+        if (runs.isEmpty()) {
+            for (Entry entry : buffer)
+                consumer.accept(entry.row());
+            buffer.clear();
+            return;
+        }
+
+        List<Cursor> cursors = new ArrayList<>();
+        try {
+            for (Path run : runs)
+                cursors.add(new RunCursor(run));
+            cursors.add(new MemoryCursor(buffer.iterator()));
+
+            PriorityQueue<Cursor> queue = new PriorityQueue<>(cursors.size(), (a, b) -> compare(a.current, b.current));
+            for (Cursor cursor : cursors) {
+                if (cursor.advance())
+                    queue.add(cursor);
+            }
+
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                consumer.accept(cursor.current.row());
+                if (cursor.advance())
+                    queue.add(cursor);
+            }
+        } finally {
+            for (Cursor cursor : cursors)
+                cursor.close();
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.clear();
+        for (Path run : runs)
+            Files.deleteIfExists(run);
+        runs.clear();
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(this::compare);
+
+        Path run = Files.createTempFile("presort_run", ".gz");
+        runs.add(run);
+
+        // Runs are read back once, fast compression is worth more than a small file
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(run), 65536) {{ def.setLevel(Deflater.BEST_SPEED); }},
+                65536))) {
+            for (Entry entry : buffer)
+                writeRow(out, entry.row());
+        }
+
+        buffer.clear();
+        bufferedBytes = 0;
+    }
+
+    private static void writeRow(DataOutputStream out, String[] row) throws IOException {
+        out.writeInt(row.length);
+        for (String value : row) {
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static String[] readRow(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        String[] row = new String[length];
+        for (int i = 0; i < length; i++) {
+            int size = in.readInt();
+            if (size >= 0) {
+                byte[] bytes = new byte[size];
+                in.readFully(bytes);
+                row[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return row;
+    }
+
+    private Comparable<?>[] key(String[] row) {
+        Comparable<?>[] key = new Comparable<?>[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            String value = keyColumns[i] < row.length ? row[keyColumns[i]] : null;
+            if (value == null || value.equals("\\N")) {
+                key[i] = null;
+            } else if (numeric[i]) {
+                key[i] = number(value);
+            } else if (enums[i] != null) {
+                // The CSV may hold the name or the number, an unknown name sorts last like nan
+                Integer code = enums[i].get(value);
+                key[i] = code != null ? BigDecimal.valueOf(code) : number(value);
+            } else {
+                key[i] = value;
+            }
+        }
+        return key;
+    }
+
+    private static Comparable<?> number(String value) {
+        if (value.isEmpty())
+            return BigDecimal.ZERO;
+
+        try {
+            return new BigDecimal(value.startsWith("+") ? value.substring(1) : value);
+        } catch (NumberFormatException e) {
+            // nan and malformed values sort after every number, a malformed one fails the insert anyway
+            String lower = value.toLowerCase();
+            if (lower.matches("\\+?inf(inity)?"))
+                return Double.POSITIVE_INFINITY;
+            if (lower.matches("-inf(inity)?"))
+                return Double.NEGATIVE_INFINITY;
+            return Double.NaN;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private int compare(Entry a, Entry b) {
+        for (int i = 0; i < keyColumns.length; i++) {
+            Comparable x = a.key()[i];
+            Comparable y = b.key()[i];
+
+            int c;
+            if (x == null || y == null)
+                c = x == null ? (y == null ? 0 : 1) : -1;
+            else if (x.getClass() != y.getClass())
+                c = x instanceof BigDecimal ? Double.compare(((BigDecimal) x).doubleValue(), (Double) y)
+                        : Double.compare((Double) x, ((BigDecimal) y).doubleValue());
+            else
+                c = x.compareTo(y);
+
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    private abstract static class Cursor implements Closeable {
+        Entry current;
+
+        abstract boolean advance() throws IOException;
+
+        @Override
+        public void close() throws IOException {}
+    }
+
+    private static final class MemoryCursor extends Cursor {
+        private final Iterator<Entry> entries;
+
+        MemoryCursor(Iterator<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        boolean advance() {
+            current = entries.hasNext() ? entries.next() : null;
+            return current != null;
+        }
+    }
+
+    private final class RunCursor extends Cursor {
+        private final DataInputStream in;
+
+        RunCursor(Path run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(run), 65536), 65536));
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            String[] row = readRow(in);
+            current = row == null ? null : new Entry(key(row), row);
+            return current != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.example.bidirectional.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a byte range of a file through memory-mapped windows, so the data is paged in by the
+ * OS instead of being copied through a heap buffer first. Several instances can read different
+ * ranges of the same channel concurrently.
+ */
+public class MappedRangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+    private MappedByteBuffer window;
+
+    public MappedRangeInputStream(FileChannel channel, long start, long end) {
+        this.channel = channel;
+        this.position = start;
+        this.end = end;
+    }
+
+    private boolean ensureWindow() throws IOException {
+        if (window != null && window.hasRemaining())
+            return true;
+
+        if (position >= end)
+            return false;
+
+        long size = Math.min(CsvRanges.WINDOW, end - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        position += size;
+
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return ensureWindow() ? window.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        if (!ensureWindow())
+            return -1;
+
+        int n = Math.min(len, window.remaining());
+        window.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        long remaining = (window == null ? 0 : window.remaining()) + (end - position);
+        return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+}
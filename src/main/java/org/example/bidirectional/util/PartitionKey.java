@@ -0,0 +1,124 @@
+package org.example.bidirectional.util;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Client side evaluation of a table's PARTITION BY expression on CSV rows, for the common
+ * forms: a plain column, and toYYYYMM, toYYYYMMDD, toYear, toDate, toStartOfMonth of a
+ * column. Dates are taken from the text as written, so a DateTime lands in the partition of
+ * its wall clock date. Epoch numbers are read as UTC, which can be off by a day against the
+ * server time zone.
+ * <p>
+ * The result only groups rows, the server still computes the real partition. A row put in
+ * the wrong group costs one more partition in that insert, never a wrong result.
+ */
+public class PartitionKey {
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*|`((?:[^`\\\\]|``|\\\\.)*)`");
+    private static final Pattern CALL = Pattern.compile("(\\w+)\\((.+)\\)");
+    private static final Pattern ISO_DATE = Pattern.compile("^(\\d{4})-(\\d{2})-(\\d{2})");
+
+    private final List<Function<String[], String>> parts;
+
+    private PartitionKey(List<Function<String[], String>> parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Returns null when a part of the key has another form, or reads a column that is not
+     * among the uploaded ones.
+     *
+     * @param keyParts parts of the PARTITION BY tuple, e.g. [tenant, toYYYYMM(ts)]
+     * @param columns  names of the values in each row, in order
+     */
+    public static PartitionKey compile(List<String> keyParts, List<String> columns) {
+        if (keyParts.isEmpty())
+            return null;
+
+        List<Function<String[], String>> parts = new ArrayList<>();
+        for (String part : keyParts) {
+            String function = null;
+            String argument = part.trim();
+
+            Matcher call = CALL.matcher(argument);
+            if (call.matches()) {
+                function = call.group(1);
+                argument = call.group(2).trim();
+            }
+
+            Matcher identifier = IDENTIFIER.matcher(argument);
+            if (!identifier.matches())
+                return null;
+
+            String column = identifier.group(1) != null
+                    ? identifier.group(1).replace("``", "`").replace("\\`", "`")
+                    : argument;
+            int index = columns.indexOf(column);
+            if (index < 0)
+                return null;
+
+            UnaryOperator<String> transform = function == null ? v -> v : dateFunction(function);
+            if (transform == null)
+                return null;
+
+            parts.add(row -> {
+                String value = index < row.length && row[index] != null ? row[index] : "";
+                return transform.apply(value);
+            });
+        }
+        return new PartitionKey(parts);
+    }
+
+    private static UnaryOperator<String> dateFunction(String function) {
+        Function<LocalDate, String> format = switch (function) {
+            case "toYYYYMM" -> d -> String.valueOf(d.getYear() * 100 + d.getMonthValue());
+            case "toYYYYMMDD" -> d -> String.valueOf(d.getYear() * 10000 + d.getMonthValue() * 100 + d.getDayOfMonth());
+            case "toYear" -> d -> String.valueOf(d.getYear());
+            case "toDate" -> LocalDate::toString;
+            case "toStartOfMonth" -> d -> d.withDayOfMonth(1).toString();
+            default -> null;
+        };
+        if (format == null)
+            return null;
+
+        return v -> {
+            LocalDate date = date(v);
+            return date == null ? "" : format.apply(date);
+        };
+    }
+
+    private static LocalDate date(String value) {
+        Matcher iso = ISO_DATE.matcher(value);
+        try {
+            if (iso.find())
+                return LocalDate.of(Integer.parseInt(iso.group(1)), Integer.parseInt(iso.group(2)), Integer.parseInt(iso.group(3)));
+
+            // Unix seconds (with optional fraction for DateTime64)
+            if (value.matches("\\d+(\\.\\d+)?"))
+                return LocalDate.ofInstant(Instant.ofEpochSecond(Long.parseLong(value.split("\\.")[0])), ZoneOffset.UTC);
+        } catch (RuntimeException e) {
+            // Invalid dates all go to one group, the server rejects or fixes them
+        }
+        return null;
+    }
+
+    /**
+     * The partition of a row, rows with the same value go into the same insert.
+     */
+    public String of(String[] row) {
+        if (parts.size() == 1)
+            return parts.getFirst().apply(row);
+
+        StringBuilder key = new StringBuilder();
+        for (Function<String[], String> part : parts)
+            key.append(part.apply(row)).append('\u0000');
+        return key.toString();
+    }
+}
@@ -0,0 +1,167 @@
+package org.example.bidirectional.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.UnaryOperator;
+
+/**
+ * Writes a file to the response honouring single byte ranges, If-Range and If-None-Match.
+ * The bytes are moved with FileChannel.transferTo, and when Tomcat offers sendfile the whole
+ * transfer is handed to the connector so the data never passes through the JVM heap.
+ */
+public class RangeFileWriter {
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private RangeFileWriter() {}
+
+    /**
+     * Parses a Range header against the file size. Returns {start, endInclusive}, null when the
+     * header should be ignored (absent, malformed or multiple ranges) and an empty array when
+     * the range cannot be satisfied.
+     */
+    public static long[] parseRange(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.contains(","))
+            return null;
+
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return null;
+
+        try {
+            String from = spec.substring(0, dash).trim();
+            String to = spec.substring(dash + 1).trim();
+
+            if (from.isEmpty()) {
+                // Suffix range, the last N bytes
+                if (to.isEmpty())
+                    return null;
+
+                long suffix = Long.parseLong(to);
+                if (suffix == 0 || size == 0)
+                    return new long[0];
+
+                return new long[]{Math.max(0, size - suffix), size - 1};
+            }
+
+            long start = Long.parseLong(from);
+            long end = to.isEmpty() ? size - 1 : Math.min(Long.parseLong(to), size - 1);
+
+            if (start >= size || start > end)
+                return new long[0];
+
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static void write(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            Path file,
+            String etag,
+            String contentType
+    ) throws IOException {
+        write(request, response, file, etag, contentType, null);
+    }
+
+    /**
+     * @param wrapper applied to the response stream, e.g. for throttling. Sendfile bypasses the
+     *                JVM entirely, so it is not used when a wrapper is given.
+     */
+    public static void write(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            Path file,
+            String etag,
+            String contentType,
+            UnaryOperator<OutputStream> wrapper
+    ) throws IOException {
+        long size = Files.size(file);
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (etag != null)
+            response.setHeader(HttpHeaders.ETAG, etag);
+
+        if (etag != null && etag.equals(request.getHeader(HttpHeaders.IF_NONE_MATCH))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        // A range is only honoured if the client still has the same version of the file
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        long[] range = ifRange == null || ifRange.equals(etag)
+                ? parseRange(request.getHeader(HttpHeaders.RANGE), size)
+                : null;
+
+        if (range != null && range.length == 0) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+            return;
+        }
+
+        long start = 0;
+        long end = size - 1;
+        if (range != null) {
+            start = range[0];
+            end = range[1];
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+
+        long length = end - start + 1;
+        response.setContentType(contentType);
+        response.setContentLengthLong(length);
+
+        if (length == 0)
+            return;
+
+        if (wrapper == null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            return;
+        }
+
+        OutputStream out = response.getOutputStream();
+        transfer(file, start, length, wrapper == null ? out : wrapper.apply(out));
+    }
+
+    public static void transfer(Path file, long start, long length, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            transfer(channel, start, length, out);
+        }
+    }
+
+    public static void transfer(FileChannel channel, long start, long length, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+
+        long position = start;
+        long remaining = length;
+        while (remaining > 0) {
+            long sent = channel.transferTo(position, remaining, target);
+            if (sent <= 0)
+                break;
+
+            position += sent;
+            remaining -= sent;
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,186 @@
+package org.example.bidirectional.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Client side check of CSV values against ClickHouse column types, so a bad value can be
+ * reported with its line and reason instead of failing the whole insert. Types without a check
+ * here (arrays, maps, tuples, ...) are passed through and left to the server. An empty value is
+ * always accepted, ClickHouse turns it into the column default.
+ */
+public class RowValidator {
+    private static final Pattern PARAMETERS = Pattern.compile("^(\\w+)\\((.*)\\)$");
+    private static final Pattern DATE_TIME = Pattern.compile(
+            "(\\d{4}-\\d{2}-\\d{2})(?:[ T]\\d{2}:\\d{2}:\\d{2}(?:\\.\\d{1,9})?)?|\\d+(?:\\.\\d+)?");
+    private static final Pattern DATE = Pattern.compile("(\\d{4}-\\d{2}-\\d{2})|\\d+");
+    private static final Pattern UUID_PATTERN = Pattern.compile(
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    static final Pattern ENUM_VALUE = Pattern.compile("'((?:[^'\\\\]|\\\\.)*)'\\s*=\\s*(-?\\d+)");
+    private static final Set<String> BOOLEANS = Set.of(
+            "true", "false", "1", "0", "yes", "no", "on", "off", "t", "f", "y", "n", "enable", "disable");
+
+    private final String[] columns;
+    private final List<UnaryOperator<String>> checks = new ArrayList<>();
+
+    /**
+     * @param columns names of the values in each row, in order
+     * @param types   ClickHouse type of every column of the target table
+     */
+    public RowValidator(List<String> columns, Map<String, String> types) {
+        this.columns = columns.toArray(new String[0]);
+        for (String column : columns)
+            checks.add(forType(types.getOrDefault(column, "String")));
+    }
+
+    /**
+     * Returns why the row cannot be inserted, or null when it looks valid.
+     */
+    public String validate(String[] row) {
+        for (int i = 0; i < checks.size(); i++) {
+            String value = i < row.length ? row[i] : null;
+            if (value == null || value.isEmpty())
+                continue;
+
+            String problem = checks.get(i).apply(value);
+            if (problem != null)
+                return columns[i] + ": " + problem;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns a check giving the reason a value does not fit the type, or null when it fits.
+     */
+    static UnaryOperator<String> forType(String type) {
+        type = type.trim();
+        Matcher m = PARAMETERS.matcher(type);
+        String name = m.matches() ? m.group(1) : type;
+        String args = m.matches() ? m.group(2) : "";
+
+        return switch (name) {
+            case "Nullable" -> {
+                UnaryOperator<String> inner = forType(args);
+                yield v -> v.equals("\\N") || v.equalsIgnoreCase("NULL") ? null : inner.apply(v);
+            }
+            case "LowCardinality" -> forType(args);
+            case "Int8" -> integer(type, 8, true);
+            case "Int16" -> integer(type, 16, true);
+            case "Int32" -> integer(type, 32, true);
+            case "Int64" -> integer(type, 64, true);
+            case "Int128" -> integer(type, 128, true);
+            case "Int256" -> integer(type, 256, true);
+            case "UInt8" -> integer(type, 8, false);
+            case "UInt16" -> integer(type, 16, false);
+            case "UInt32" -> integer(type, 32, false);
+            case "UInt64" -> integer(type, 64, false);
+            case "UInt128" -> integer(type, 128, false);
+            case "UInt256" -> integer(type, 256, false);
+            case "Float32", "Float64" -> v -> {
+                String lower = v.toLowerCase();
+                if (lower.matches("[+-]?(inf|nan)"))
+                    return null;
+                try {
+                    Double.parseDouble(v);
+                    return null;
+                } catch (NumberFormatException e) {
+                    return "'" + v + "' is not a " + name;
+                }
+            };
+            case "Decimal", "Decimal32", "Decimal64", "Decimal128", "Decimal256" -> decimal(name, args);
+            case "Bool", "Boolean" -> v -> BOOLEANS.contains(v.toLowerCase()) ? null : "'" + v + "' is not a Bool";
+            case "Date", "Date32" -> date(DATE, name);
+            case "DateTime", "DateTime64" -> date(DATE_TIME, name);
+            case "UUID" -> v -> UUID_PATTERN.matcher(v).matches() ? null : "'" + v + "' is not a UUID";
+            case "FixedString" -> {
+                int length = Integer.parseInt(args.trim());
+                yield v -> v.getBytes(StandardCharsets.UTF_8).length <= length
+                        ? null : "'" + v + "' is longer than " + length + " bytes";
+            }
+            case "Enum", "Enum8", "Enum16" -> enumeration(name, args);
+            default -> _ -> null;
+        };
+    }
+
+    private static UnaryOperator<String> integer(String type, int bits, boolean signed) {
+        BigInteger min = signed ? BigInteger.ONE.shiftLeft(bits - 1).negate() : BigInteger.ZERO;
+        BigInteger max = signed
+                ? BigInteger.ONE.shiftLeft(bits - 1).subtract(BigInteger.ONE)
+                : BigInteger.ONE.shiftLeft(bits).subtract(BigInteger.ONE);
+
+        return v -> {
+            try {
+                BigInteger n = new BigInteger(v.startsWith("+") ? v.substring(1) : v);
+                return n.compareTo(min) < 0 || n.compareTo(max) > 0 ? v + " is out of range for " + type : null;
+            } catch (NumberFormatException e) {
+                return "'" + v + "' is not an integer";
+            }
+        };
+    }
+
+    private static UnaryOperator<String> decimal(String name, String args) {
+        String[] parts = args.split(",");
+        int precision;
+        int scale;
+
+        if (name.equals("Decimal")) {
+            precision = parts[0].isBlank() ? 10 : Integer.parseInt(parts[0].trim());
+            scale = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 0;
+        } else {
+            precision = switch (name) {
+                case "Decimal32" -> 9;
+                case "Decimal64" -> 18;
+                case "Decimal128" -> 38;
+                default -> 76;
+            };
+            scale = Integer.parseInt(parts[0].trim());
+        }
+
+        int integerDigits = precision - scale;
+        return v -> {
+            try {
+                BigDecimal d = new BigDecimal(v);
+                return d.precision() - d.scale() > integerDigits
+                        ? v + " has more than " + integerDigits + " integer digits"
+                        : null;
+            } catch (NumberFormatException e) {
+                return "'" + v + "' is not a decimal";
+            }
+        };
+    }
+
+    private static UnaryOperator<String> date(Pattern pattern, String name) {
+        return v -> {
+            Matcher m = pattern.matcher(v);
+            if (!m.matches())
+                return "'" + v + "' is not a " + name;
+
+            try {
+                if (m.group(1) != null)
+                    LocalDate.parse(m.group(1));
+                return null;
+            } catch (DateTimeParseException e) {
+                return "'" + v + "' is not a valid date";
+            }
+        };
+    }
+
+    private static UnaryOperator<String> enumeration(String name, String args) {
+        Set<String> allowed = new HashSet<>();
+        Matcher m = ENUM_VALUE.matcher(args);
+        while (m.find()) {
+            allowed.add(m.group(1).replace("\\'", "'"));
+            allowed.add(m.group(2));
+        }
+
+        return v -> allowed.isEmpty() || allowed.contains(v) ? null : "'" + v + "' is not a value of " + name;
+    }
+}
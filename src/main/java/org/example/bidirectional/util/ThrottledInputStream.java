@@ -0,0 +1,48 @@
+package org.example.bidirectional.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+/**
+ * Charges every byte read against all the given buckets, e.g. the job's own limit and the
+ * global aggregate.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+    private final List<TokenBucket> buckets;
+
+    public ThrottledInputStream(InputStream in, List<TokenBucket> buckets) {
+        super(in);
+        this.buckets = buckets;
+    }
+
+    private void throttle(long bytes) throws IOException {
+        try {
+            for (TokenBucket bucket : buckets)
+                bucket.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0)
+            throttle(1);
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0)
+            throttle(n);
+
+        return n;
+    }
+}
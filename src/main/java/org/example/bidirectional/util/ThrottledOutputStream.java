@@ -0,0 +1,41 @@
+package org.example.bidirectional.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Output counterpart of {@link ThrottledInputStream}.
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+    private final List<TokenBucket> buckets;
+
+    public ThrottledOutputStream(OutputStream out, List<TokenBucket> buckets) {
+        super(out);
+        this.buckets = buckets;
+    }
+
+    private void throttle(long bytes) throws IOException {
+        try {
+            for (TokenBucket bucket : buckets)
+                bucket.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        throttle(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        throttle(len);
+        out.write(b, off, len);
+    }
+}
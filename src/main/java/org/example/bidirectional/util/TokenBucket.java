@@ -0,0 +1,56 @@
+package org.example.bidirectional.util;
+
+/**
+ * Blocking token bucket measured in bytes. Tokens refill continuously at {@code rate} per
+ * second up to one second worth of burst. A rate of zero or less means unlimited.
+ */
+public class TokenBucket {
+    private final long rate;
+    private final long capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long bytesPerSecond) {
+        this.rate = bytesPerSecond;
+        this.capacity = Math.max(bytesPerSecond, 1);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public boolean isUnlimited() {
+        return rate <= 0;
+    }
+
+    /**
+     * Takes {@code bytes} tokens, sleeping until enough have been refilled. Requests larger
+     * than the burst size are served in several steps.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        if (isUnlimited())
+            return;
+
+        long remaining = bytes;
+        while (remaining > 0) {
+            long step = Math.min(remaining, capacity);
+            long waitNanos;
+
+            synchronized (this) {
+                refill();
+                if (tokens >= step) {
+                    tokens -= step;
+                    remaining -= step;
+                    continue;
+                }
+                waitNanos = (long) ((step - tokens) * 1_000_000_000L / rate);
+            }
+
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1_000_000_000.0);
+        lastRefill = now;
+    }
+}
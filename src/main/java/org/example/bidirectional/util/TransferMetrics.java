@@ -0,0 +1,72 @@
+package org.example.bidirectional.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Meters for the ClickHouse services. Those are created per request with {@code new}, so they
+ * record into the global registry, which Spring Boot adds its Prometheus registry to. Rows and
+ * bytes are counters, per second rates come from rate() on the scraping side.
+ */
+public final class TransferMetrics {
+    public static final String UPLOAD = "upload";
+    public static final String EXPORT = "export";
+
+    private static final MeterRegistry registry = Metrics.globalRegistry;
+
+    private TransferMetrics() {}
+
+    public static Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    /**
+     * Latency of one ClickHouse call, e.g. getColumns, listTables, insert or export, with a
+     * histogram so percentiles can be aggregated across instances.
+     */
+    public static void recordQuery(String operation, Timer.Sample sample) {
+        sample.stop(Timer.builder("clickhouse.query")
+                .description("ClickHouse call latency")
+                .tag("operation", operation)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+
+    public static void recordTransfer(String direction, long rows, long bytes) {
+        Counter.builder("bidirectional.transfer.rows").tag("direction", direction).register(registry).increment(rows);
+        Counter.builder("bidirectional.transfer.bytes").tag("direction", direction).baseUnit("bytes")
+                .register(registry).increment(bytes);
+    }
+
+    /**
+     * Time spent in one phase of a transfer: "parse" is client side CSV parsing and validation,
+     * "server" the elapsed time reported by ClickHouse, "network" the remaining wall time. A
+     * presorted upload records its parsing and sorting, done before the insert, as "sort".
+     */
+    public static void recordPhase(String direction, String phase, long nanos) {
+        Timer.builder("bidirectional.transfer.phase")
+                .tag("direction", direction)
+                .tag("phase", phase)
+                .register(registry)
+                .record(Math.max(0, nanos), TimeUnit.NANOSECONDS);
+    }
+
+    public static <T> void gauge(String name, T target, ToDoubleFunction<T> value, String... tags) {
+        Gauge.builder(name, target, value).tags(tags).register(registry);
+    }
+
+    public static void countClientCreated() {
+        Counter.builder("clickhouse.client.created").register(registry).increment();
+    }
+
+    public static void countPing(boolean success) {
+        Counter.builder("clickhouse.client.ping").tag("outcome", success ? "success" : "failure")
+                .register(registry).increment();
+    }
+}
@@ -0,0 +1,82 @@
+package org.example.bidirectional.service;
+
+import org.example.bidirectional.config.ConnectionConfig;
+import org.example.bidirectional.exception.AdmissionRejectedException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionServiceTest {
+
+    private AdmissionService admissionService;
+
+    private static ConnectionConfig host(String name) {
+        ConnectionConfig connection = new ConnectionConfig();
+        connection.setHost(name);
+        connection.setPort(8123);
+        return connection;
+    }
+
+    @BeforeEach
+    void setUp() {
+        admissionService = new AdmissionService();
+        ReflectionTestUtils.setField(admissionService, "maxJobs", 2);
+        ReflectionTestUtils.setField(admissionService, "maxJobsPerHost", 1);
+        ReflectionTestUtils.setField(admissionService, "memoryBudget", DataSize.ofMegabytes(64));
+        ReflectionTestUtils.setField(admissionService, "jobMemory", DataSize.ofMegabytes(8));
+        ReflectionTestUtils.setField(admissionService, "minFreeDisk", DataSize.ofBytes(0));
+        ReflectionTestUtils.setField(admissionService, "maxQueue", 0);
+        ReflectionTestUtils.setField(admissionService, "queueTimeout", Duration.ofMillis(50));
+        ReflectionTestUtils.setField(admissionService, "retryAfter", Duration.ofSeconds(3));
+        ReflectionTestUtils.setField(admissionService, "exportDir", Path.of(System.getProperty("java.io.tmpdir")));
+    }
+
+    @Test
+    void testPerHostLimitRejectsWithRetryAfter() {
+        try (var _ = admissionService.admit(host("a"), AdmissionService.JobKind.UPLOAD)) {
+            AdmissionRejectedException e = assertThrows(AdmissionRejectedException.class,
+                    () -> admissionService.admit(host("a"), AdmissionService.JobKind.UPLOAD));
+            assertEquals(3, e.getRetryAfterSeconds());
+
+            // Another host still has room
+            assertDoesNotThrow(() -> admissionService.admit(host("b"), AdmissionService.JobKind.EXPORT).close());
+        }
+
+        assertEquals(0, admissionService.getActiveJobs());
+    }
+
+    @Test
+    void testQueuedJobTimesOut() {
+        ReflectionTestUtils.setField(admissionService, "maxQueue", 4);
+
+        try (var _ = admissionService.admit(host("a"), AdmissionService.JobKind.UPLOAD)) {
+            assertThrows(AdmissionRejectedException.class,
+                    () -> admissionService.admit(host("a"), AdmissionService.JobKind.UPLOAD));
+            assertEquals(0, admissionService.getQueuedJobs());
+        }
+    }
+
+    @Test
+    void testQueuedJobStartsWhenSlotIsReleased() throws Exception {
+        ReflectionTestUtils.setField(admissionService, "maxQueue", 4);
+        ReflectionTestUtils.setField(admissionService, "queueTimeout", Duration.ofSeconds(5));
+
+        AdmissionService.Ticket first = admissionService.admit(host("a"), AdmissionService.JobKind.UPLOAD);
+        Thread releaser = new Thread(() -> {
+            try { Thread.sleep(100); } catch (InterruptedException _) {}
+            first.close();
+        });
+        releaser.start();
+
+        try (var _ = admissionService.admit(host("a"), AdmissionService.JobKind.UPLOAD)) {
+            assertEquals(1, admissionService.getActiveJobs());
+        }
+        releaser.join();
+    }
+}
@@ -0,0 +1,168 @@
+package org.example.bidirectional.service;
+
+import org.example.bidirectional.config.SelectedColumnsQueryConfig;
+import org.example.bidirectional.model.FilterCondition;
+import org.example.bidirectional.model.JoinTable;
+import org.example.bidirectional.model.OrderByColumn;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClickHouseServiceQueryTest {
+
+    private SelectedColumnsQueryConfig baseConfig() {
+        SelectedColumnsQueryConfig config = new SelectedColumnsQueryConfig();
+        config.setTableName("events");
+        config.setColumns(List.of("tenant", "ts"));
+        return config;
+    }
+
+    @Test
+    void testPlainSelect() {
+        assertEquals("SELECT `events`.`tenant`,`events`.`ts` FROM `events`",
+                ClickHouseService.buildSelectQuery(baseConfig()));
+    }
+
+    @Test
+    void testFiltersOrderAndLimit() {
+        SelectedColumnsQueryConfig config = baseConfig();
+        config.setFilters(List.of(
+                new FilterCondition("tenant", "=", "acme"),
+                new FilterCondition("ts", ">=", "2025-04-01")
+        ));
+        config.setOrderBy(List.of(new OrderByColumn("ts", "desc")));
+        config.setLimit(10L);
+        config.setOffset(20L);
+
+        assertEquals("SELECT `events`.`tenant`,`events`.`ts` FROM `events`"
+                        + " WHERE `events`.`tenant` = 'acme' AND `events`.`ts` >= '2025-04-01'"
+                        + " ORDER BY `events`.`ts` DESC LIMIT 10 OFFSET 20",
+                ClickHouseService.buildSelectQuery(config));
+    }
+
+    @Test
+    void testValuesAreEscaped() {
+        SelectedColumnsQueryConfig config = baseConfig();
+        FilterCondition in = new FilterCondition();
+        in.setColumn("tenant");
+        in.setOperator("not in");
+        in.setValues(List.of("a'b", "c\\d"));
+        config.setFilters(List.of(in));
+
+        assertTrue(ClickHouseService.buildSelectQuery(config)
+                .endsWith("WHERE `events`.`tenant` NOT IN ('a\\'b', 'c\\\\d')"));
+    }
+
+    @Test
+    void testSampleAndPartitions() {
+        SelectedColumnsQueryConfig config = baseConfig();
+        config.setSampleRatio(0.1);
+        config.setPartitionIds(List.of("202504"));
+
+        assertEquals("SELECT `events`.`tenant`,`events`.`ts` FROM `events` SAMPLE 0.1"
+                        + " WHERE `events`.`_partition_id` IN ('202504')",
+                ClickHouseService.buildSelectQuery(config));
+    }
+
+    @Test
+    void testInvalidInputsAreRejected() {
+        SelectedColumnsQueryConfig badOperator = baseConfig();
+        badOperator.setFilters(List.of(new FilterCondition("tenant", "= 1 OR 1 =", "x")));
+        assertThrows(IllegalArgumentException.class, () -> ClickHouseService.buildSelectQuery(badOperator));
+
+        SelectedColumnsQueryConfig badSample = baseConfig();
+        badSample.setSampleRatio(1.5);
+        assertThrows(IllegalArgumentException.class, () -> ClickHouseService.buildSelectQuery(badSample));
+
+        SelectedColumnsQueryConfig badOrder = baseConfig();
+        badOrder.setOrderBy(List.of(new OrderByColumn("ts", "sideways")));
+        assertThrows(IllegalArgumentException.class, () -> ClickHouseService.buildSelectQuery(badOrder));
+    }
+
+    @Test
+    void testJoinPushDown() {
+        JoinTable join = new JoinTable();
+        join.setTableName("tenants");
+        join.setJoinType("left join");
+        join.setJoinCondition("events.tenant = tenants.id");
+        join.setFilters(List.of(new FilterCondition("region", "=", "eu")));
+        join.setPushDownColumns(true);
+
+        SelectedColumnsQueryConfig config = baseConfig();
+        config.setColumns(List.of("ts", "tenants.name"));
+        config.setJoinTables(List.of(join));
+
+        assertEquals("SELECT `events`.`ts`,`tenants`.`name` FROM `events` LEFT JOIN"
+                        + " (SELECT `name`, `id` FROM `tenants` WHERE `tenants`.`region` = 'eu') AS `tenants`"
+                        + " ON events.tenant = tenants.id",
+                ClickHouseService.buildSelectQuery(config));
+    }
+
+    @Test
+    void testEstimateCountsFilterOrderAndJoinColumns() {
+        JoinTable join = new JoinTable();
+        join.setTableName("tenants");
+        join.setJoinType("inner join");
+        join.setJoinCondition("events.tenant = `tenants`.`id`");
+        join.setFilters(List.of(new FilterCondition("region", "=", "eu")));
+
+        SelectedColumnsQueryConfig config = baseConfig();
+        config.setColumns(List.of("ts", "tenants.name"));
+        config.setJoinTables(List.of(join));
+        config.setFilters(List.of(new FilterCondition("status", "=", "ok")));
+        config.setOrderBy(List.of(new OrderByColumn("id", "asc")));
+        config.setWatermarkColumn("version");
+
+        assertEquals(List.of("ts", "status", "id", "version", "tenant"),
+                ClickHouseService.referencedColumns(config, "events"));
+        assertEquals(List.of("name", "region", "id"),
+                ClickHouseService.referencedColumns(config, "tenants"));
+    }
+
+    @Test
+    void testJoinSettings() {
+        SelectedColumnsQueryConfig config = baseConfig();
+        config.setJoinAlgorithm("Grace_Hash, hash");
+        config.setMaxBytesInJoin(1L << 30);
+
+        assertEquals(Map.of("join_algorithm", "grace_hash,hash", "max_bytes_in_join", "1073741824"),
+                ClickHouseService.buildQuerySettings(config));
+
+        config.setJoinAlgorithm("nested_loop");
+        assertThrows(IllegalArgumentException.class, () -> ClickHouseService.buildQuerySettings(config));
+    }
+
+    @Test
+    void testSortingKeyColumns() {
+        assertEquals(List.of("id", "my col"), ClickHouseService.sortingKeyColumns("id, `my col`"));
+        assertEquals(List.of("tenant"), ClickHouseService.sortingKeyColumns("tenant, toDate(ts), id"));
+        assertEquals(List.of(), ClickHouseService.sortingKeyColumns("cityHash64(a, b), a"));
+        assertEquals(List.of(), ClickHouseService.sortingKeyColumns(""));
+    }
+
+    @Test
+    void testPartitionKeyParts() {
+        assertEquals(List.of("toYYYYMM(ts)"), ClickHouseService.partitionKeyParts("toYYYYMM(ts)"));
+        assertEquals(List.of("tenant", "toDate(ts)"), ClickHouseService.partitionKeyParts("(tenant, toDate(ts))"));
+        assertEquals(List.of("(a + 1) * b"), ClickHouseService.partitionKeyParts("(a + 1) * b"));
+        assertEquals(List.of(), ClickHouseService.partitionKeyParts("tuple()"));
+        assertEquals(List.of(), ClickHouseService.partitionKeyParts(""));
+    }
+
+    @Test
+    void testWatermarkRange() {
+        SelectedColumnsQueryConfig config = baseConfig();
+        config.setWatermarkColumn("ts");
+        config.setFilters(List.of(new FilterCondition("tenant", "=", "acme")));
+        config.setOrderBy(List.of(new OrderByColumn("ts", "asc")));
+
+        assertEquals("SELECT count(), toString(max(`events`.`ts`)) FROM `events`"
+                        + " WHERE `events`.`tenant` = 'acme' AND `events`.`ts` > '2025-04-01 00:00:00'",
+                ClickHouseService.buildWatermarkRangeQuery(config, "2025-04-01 00:00:00"));
+        assertEquals("SELECT count(), toString(max(`events`.`ts`)) FROM `events` WHERE `events`.`tenant` = 'acme'",
+                ClickHouseService.buildWatermarkRangeQuery(config, null));
+    }
+}
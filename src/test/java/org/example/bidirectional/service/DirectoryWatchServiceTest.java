@@ -0,0 +1,194 @@
+package org.example.bidirectional.service;
+
+import org.example.bidirectional.config.ConnectionConfig;
+import org.example.bidirectional.config.UploadConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirectoryWatchServiceTest {
+
+    private Path dir;
+    private Path file;
+    private final List<DirectoryWatchService> services = new ArrayList<>();
+    private RecordingIngestion ingestion;
+    private DirectoryWatchService.Watch watch;
+
+    /**
+     * Records every batch with its deduplication token instead of inserting it.
+     */
+    private static class RecordingIngestion extends IngestionService {
+        final List<String> batches = new ArrayList<>();
+        final List<String> tokens = new ArrayList<>();
+        int failures;
+
+        RecordingIngestion() {
+            super(null);
+        }
+
+        @Override
+        public long ingestDataFromStream(Integer totalCols, String tableName, List<String> headers, String delimiter,
+                                         InputStream source, Map<String, String> serverSettings) throws IOException {
+            String batch = new String(source.readAllBytes(), StandardCharsets.UTF_8);
+            batches.add(batch);
+            tokens.add(serverSettings.get("insert_deduplication_token"));
+
+            if (failures > 0) {
+                failures--;
+                throw new IOException("Connection reset");
+            }
+            return batch.lines().count() - 1;
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("watch-test");
+        file = dir.resolve("data.csv");
+        ingestion = new RecordingIngestion();
+
+        ConnectionConfig connection = new ConnectionConfig();
+        connection.setHost("localhost");
+        connection.setPort(8123);
+
+        UploadConfig config = new UploadConfig();
+        config.setConnection(connection);
+        config.setTableName("events");
+        config.setDelimiter(",");
+        config.setTotalCols(2);
+        config.setColumnTypes(new LinkedHashMap<>(Map.of("id", "UInt32")));
+        config.getColumnTypes().put("name", "String");
+
+        watch = new DirectoryWatchService.Watch("test", config, dir, "*.csv", ingestion);
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        for (DirectoryWatchService service : services)
+            service.shutdown();
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path f : files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(f);
+        }
+    }
+
+    /**
+     * A service over the same state directory, a second one behaves like a restart.
+     */
+    private DirectoryWatchService newService() throws IOException {
+        AdmissionService admissionService = new AdmissionService();
+        ReflectionTestUtils.setField(admissionService, "maxJobs", 2);
+        ReflectionTestUtils.setField(admissionService, "maxJobsPerHost", 2);
+        ReflectionTestUtils.setField(admissionService, "memoryBudget", DataSize.ofMegabytes(64));
+        ReflectionTestUtils.setField(admissionService, "jobMemory", DataSize.ofMegabytes(8));
+        ReflectionTestUtils.setField(admissionService, "minFreeDisk", DataSize.ofBytes(0));
+        ReflectionTestUtils.setField(admissionService, "maxQueue", 0);
+        ReflectionTestUtils.setField(admissionService, "queueTimeout", Duration.ofMillis(50));
+        ReflectionTestUtils.setField(admissionService, "retryAfter", Duration.ofSeconds(3));
+        ReflectionTestUtils.setField(admissionService, "exportDir", dir);
+
+        DirectoryWatchService service = new DirectoryWatchService(admissionService, null);
+        ReflectionTestUtils.setField(service, "stateDir", dir.resolve("state"));
+        ReflectionTestUtils.setField(service, "batchSize", DataSize.ofKilobytes(1));
+        service.init();
+        services.add(service);
+        return service;
+    }
+
+    private void write(String content) throws IOException {
+        // Truncates in place, the file keeps its identity
+        Files.writeString(file, content);
+    }
+
+    private void append(String content) throws IOException {
+        Files.writeString(file, content, StandardOpenOption.APPEND);
+    }
+
+    @Test
+    void testOnlyCompleteRecordsAreSent() throws Exception {
+        DirectoryWatchService service = newService();
+
+        write("id,na");
+        service.tail(watch, file);
+        assertTrue(ingestion.batches.isEmpty());
+
+        // The quoted newline does not end the second record
+        write("id,name\n1,a\n2,\"b\n");
+        service.tail(watch, file);
+        assertEquals(List.of("id,name\n1,a\n"), ingestion.batches);
+
+        append("c\"\n3,d");
+        service.tail(watch, file);
+        service.tail(watch, file);
+        assertEquals(List.of("id,name\n1,a\n", "id,name\n2,\"b\nc\"\n"), ingestion.batches);
+        assertNotEquals(ingestion.tokens.get(0), ingestion.tokens.get(1));
+    }
+
+    @Test
+    void testPendingBatchIsReplayedWithSameToken() throws Exception {
+        write("id,name\n1,a\n");
+        ingestion.failures = 1;
+        assertThrows(IOException.class, () -> newService().tail(watch, file));
+
+        // Records appended meanwhile do not change the replayed batch
+        append("2,b\n");
+        newService().tail(watch, file);
+
+        assertEquals(List.of("id,name\n1,a\n", "id,name\n1,a\n", "id,name\n2,b\n"), ingestion.batches);
+        assertEquals(ingestion.tokens.get(0), ingestion.tokens.get(1));
+        assertNotEquals(ingestion.tokens.get(1), ingestion.tokens.get(2));
+    }
+
+    @Test
+    void testTruncationStartsOver() throws Exception {
+        DirectoryWatchService service = newService();
+
+        write("id,name\n1,a\n2,b\n");
+        service.tail(watch, file);
+
+        write("id,name\n3,c\n");
+        service.tail(watch, file);
+
+        assertEquals(List.of("id,name\n1,a\n2,b\n", "id,name\n3,c\n"), ingestion.batches);
+    }
+
+    @Test
+    void testRotationToSameSizeIsInserted() throws Exception {
+        DirectoryWatchService service = newService();
+
+        write("id,name\n1,a\n");
+        service.tail(watch, file);
+
+        // Rotated away, the new file has the same size and even the same content
+        Files.move(file, dir.resolve("data.csv.1"));
+        write("id,name\n1,a\n");
+        service.tail(watch, file);
+
+        // Copy-truncate: same file, same size, new content
+        write("id,name\n2,b\n");
+        service.tail(watch, file);
+
+        // Rewritten in place past the stored offset
+        write("id,name\n4,d\n5,e\n");
+        service.tail(watch, file);
+
+        assertEquals(List.of("id,name\n1,a\n", "id,name\n1,a\n", "id,name\n2,b\n", "id,name\n4,d\n5,e\n"),
+                ingestion.batches);
+        assertEquals(4, new HashSet<>(ingestion.tokens).size());
+    }
+}
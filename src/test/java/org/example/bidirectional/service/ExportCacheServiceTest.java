@@ -0,0 +1,78 @@
+package org.example.bidirectional.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExportCacheServiceTest {
+
+    private ExportCacheService exportCacheService;
+    private Path cacheDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("export-cache-test");
+        exportCacheService = new ExportCacheService();
+        ReflectionTestUtils.setField(exportCacheService, "cacheDir", cacheDir);
+        ReflectionTestUtils.setField(exportCacheService, "maxSize", DataSize.ofBytes(10));
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        try (Stream<Path> files = Files.walk(cacheDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(file);
+        }
+    }
+
+    private ExportCacheService.Lease store(String key) throws IOException {
+        Path file = exportCacheService.newTempFile(key);
+        Files.writeString(file, "a,b\n1,2\n");
+        return exportCacheService.store(key, "v1", file, 2);
+    }
+
+    @Test
+    void testEvictedFileIsDeletedWhenNotLeased() throws IOException {
+        Path first;
+        try (var lease = store("first")) {
+            first = lease.getArtifact().getPath();
+        }
+
+        store("second").close();
+
+        assertFalse(Files.exists(first));
+        assertTrue(exportCacheService.lookup("first", "v1").isEmpty());
+    }
+
+    @Test
+    void testLeasedFileSurvivesEviction() throws IOException {
+        try (var lease = store("first")) {
+            store("second").close();
+
+            // Gone from the cache, but the download holding the lease can still read it
+            assertTrue(exportCacheService.lookup("first", "v1").isEmpty());
+            assertEquals("a,b\n1,2\n", Files.readString(lease.getArtifact().getPath()));
+        }
+    }
+
+    @Test
+    void testIdCannotBeDerivedFromTheQuery() throws IOException {
+        try (var lease = store("first")) {
+            String id = lease.getArtifact().getId();
+
+            assertNotEquals("first", id);
+            assertTrue(exportCacheService.get("first").isEmpty());
+            exportCacheService.get(id).orElseThrow().close();
+        }
+    }
+}
@@ -3,8 +3,13 @@ package org.example.bidirectional.service;
 import com.opencsv.exceptions.CsvException;
 import org.junit.jupiter.api.*;
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -78,6 +83,16 @@ public class FileServiceTest {
         assertTrue(result.isEmpty());
     }
 
+    @Test
+    void testBlankLinesAreKept() throws IOException {
+        Files.writeString(Path.of(testFilePath), "ID,Name\n\n1,Alice\n");
+        List<String[]> result = fileService.readCsv(testFilePath, ',');
+
+        assertEquals(3, result.size());
+        assertArrayEquals(new String[]{""}, result.get(1));
+        assertArrayEquals(new String[]{"1", "Alice"}, result.get(2));
+    }
+
     @Test
     void testPipeDelimiter() throws IOException, CsvException {
         List<String[]> data = List.of(
@@ -97,4 +112,48 @@ public class FileServiceTest {
     void testInvalidFilePath() {
         assertThrows(IOException.class, () -> fileService.readCsv("non_existent.csv", ','));
     }
+
+    @Test
+    void testParallelStreamKeepsOrder() throws IOException {
+        Path path = Path.of(testFilePath);
+        Stream<String[]> rows = IntStream.range(0, 60_000)
+                .mapToObj(i -> new String[]{String.valueOf(i), "quoted, \"value\"\nover lines " + i});
+        fileService.writeCsv(path, rows, ',', StandardCharsets.UTF_8);
+        assertTrue(Files.size(path) > 2 * 1024 * 1024);
+
+        try (Stream<String[]> records = fileService.streamCsv(path, ',').parallel()) {
+            List<String[]> result = records.toList();
+
+            assertEquals(60_000, result.size());
+            for (int i = 0; i < result.size(); i++)
+                assertArrayEquals(new String[]{String.valueOf(i), "quoted, \"value\"\nover lines " + i}, result.get(i));
+        }
+    }
+
+    @Test
+    void testCharsetDetection() throws IOException {
+        Path path = Path.of(testFilePath);
+
+        // U+FEFF encodes as the UTF-8 byte order mark
+        Files.write(path, "\uFEFFName,City\nJosé,Zürich\n".getBytes(StandardCharsets.UTF_8));
+        List<String[]> utf8 = fileService.readCsv(testFilePath, ',');
+        assertArrayEquals(new String[]{"Name", "City"}, utf8.get(0));
+        assertArrayEquals(new String[]{"José", "Zürich"}, utf8.get(1));
+
+        fileService.writeCsv(path, List.<String[]>of(new String[]{"José", "Zürich"}).iterator(), ',', Charset.forName("windows-1252"));
+        assertArrayEquals(new String[]{"José", "Zürich"}, fileService.readCsv(testFilePath, ',').get(0));
+    }
+
+    @Test
+    void testPreviewRowsFromStream() throws IOException {
+        byte[] bytes = "\uFEFFID;Name\n1;Alice\n2;Bob\n".getBytes(StandardCharsets.UTF_8);
+
+        try (Stream<String[]> records = FileService.streamCsvRows(new ByteArrayInputStream(bytes), ";")) {
+            List<String[]> result = records.limit(2).toList();
+
+            assertEquals(2, result.size());
+            assertArrayEquals(new String[]{"ID", "Name"}, result.get(0));
+            assertArrayEquals(new String[]{"1", "Alice"}, result.get(1));
+        }
+    }
 }
@@ -0,0 +1,162 @@
+package org.example.bidirectional.service;
+
+import org.example.bidirectional.config.ConnectionConfig;
+import org.example.bidirectional.config.SelectedColumnsQueryConfig;
+import org.example.bidirectional.model.FilterCondition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WatermarkServiceTest {
+
+    private WatermarkService watermarkService;
+    private Path stateDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        stateDir = Files.createTempDirectory("watermark-test");
+        watermarkService = newService();
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        try (Stream<Path> files = Files.walk(stateDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(file);
+        }
+    }
+
+    private WatermarkService newService() throws IOException {
+        WatermarkService service = new WatermarkService();
+        ReflectionTestUtils.setField(service, "stateDir", stateDir);
+        service.init();
+        return service;
+    }
+
+    private static SelectedColumnsQueryConfig selection(String username) {
+        ConnectionConfig connection = new ConnectionConfig();
+        connection.setHost("localhost");
+        connection.setPort(8123);
+        connection.setUsername(username);
+
+        SelectedColumnsQueryConfig config = new SelectedColumnsQueryConfig();
+        config.setConnection(connection);
+        config.setTableName("events");
+        config.setColumns(List.of("id", "ts"));
+        config.setFilters(List.of(new FilterCondition("tenant", "=", "acme")));
+        config.setWatermarkColumn("ts");
+        return config;
+    }
+
+    @Test
+    void testKeyIsStablePerSelectionAndUser() {
+        SelectedColumnsQueryConfig config = selection("alice");
+        String key = watermarkService.key(config);
+
+        // The override of a single run does not move the selection to another mark
+        SelectedColumnsQueryConfig rerun = selection("alice");
+        rerun.setWatermarkFrom("2025-04-01 00:00:00");
+        assertEquals(key, watermarkService.key(rerun));
+
+        assertNotEquals(key, watermarkService.key(selection("bob")));
+
+        SelectedColumnsQueryConfig otherFilter = selection("alice");
+        otherFilter.setFilters(List.of(new FilterCondition("tenant", "=", "globex")));
+        assertNotEquals(key, watermarkService.key(otherFilter));
+    }
+
+    @Test
+    void testIncrementIsBoundedByBothMarks() throws Exception {
+        SelectedColumnsQueryConfig config = selection("alice");
+        List<String> lowerBounds = new ArrayList<>();
+        List<SelectedColumnsQueryConfig> increments = new ArrayList<>();
+
+        watermarkService.exportIncrement(config, previous -> {
+            lowerBounds.add(previous);
+            return new String[]{"3", "2025-04-02 00:00:00"};
+        }, (increment, previous, watermark) -> {
+            assertNull(previous);
+            assertEquals("2025-04-02 00:00:00", watermark);
+            increments.add(increment);
+            return true;
+        });
+
+        assertEquals("SELECT `events`.`id`,`events`.`ts` FROM `events` WHERE `events`.`tenant` = 'acme'"
+                        + " AND `events`.`ts` <= '2025-04-02 00:00:00'",
+                ClickHouseService.buildSelectQuery(increments.getFirst()));
+
+        watermarkService.exportIncrement(config, previous -> {
+            lowerBounds.add(previous);
+            return new String[]{"1", "2025-04-03 00:00:00"};
+        }, (increment, previous, watermark) -> {
+            increments.add(increment);
+            return true;
+        });
+
+        assertEquals(Arrays.asList(null, "2025-04-02 00:00:00"), lowerBounds);
+        assertTrue(ClickHouseService.buildSelectQuery(increments.getLast())
+                .endsWith("WHERE `events`.`tenant` = 'acme' AND `events`.`ts` > '2025-04-02 00:00:00'"
+                        + " AND `events`.`ts` <= '2025-04-03 00:00:00'"));
+        assertEquals(1, config.getFilters().size());
+    }
+
+    @Test
+    void testMarkIsCommittedOnlyAfterDelivery() throws Exception {
+        SelectedColumnsQueryConfig config = selection("alice");
+        String key = watermarkService.key(config);
+        watermarkService.commit(key, "2025-04-01 00:00:00");
+
+        assertThrows(IOException.class, () -> watermarkService.exportIncrement(config,
+                previous -> new String[]{"5", "2025-04-02 00:00:00"},
+                (increment, previous, watermark) -> {
+                    throw new IOException("Connection reset");
+                }));
+        assertEquals("2025-04-01 00:00:00", watermarkService.get(key));
+
+        // A 304 or a range request did not deliver the whole increment
+        watermarkService.exportIncrement(config, previous -> new String[]{"5", "2025-04-02 00:00:00"},
+                (increment, previous, watermark) -> false);
+        assertEquals("2025-04-01 00:00:00", watermarkService.get(key));
+
+        // Nothing new, the file only has a header and the mark stays
+        watermarkService.exportIncrement(config, previous -> new String[]{"0", "2025-04-01 00:00:00"},
+                (increment, previous, watermark) -> {
+                    assertEquals("2025-04-01 00:00:00", watermark);
+                    return true;
+                });
+        assertEquals("2025-04-01 00:00:00", watermarkService.get(key));
+
+        watermarkService.exportIncrement(config, previous -> new String[]{"5", "2025-04-02 00:00:00"},
+                (increment, previous, watermark) -> true);
+        assertEquals("2025-04-02 00:00:00", watermarkService.get(key));
+
+        // Survives a restart
+        assertEquals("2025-04-02 00:00:00", newService().get(key));
+    }
+
+    @Test
+    void testFailedCommitKeepsPreviousMark() throws IOException {
+        String key = watermarkService.key(selection("alice"));
+        watermarkService.commit(key, "2025-04-01 00:00:00");
+
+        // The marks file cannot be replaced by a directory
+        Files.delete(stateDir.resolve("watermarks.json"));
+        Files.createDirectories(stateDir.resolve("watermarks.json").resolve("blocked"));
+
+        assertThrows(UncheckedIOException.class, () -> watermarkService.commit(key, "2025-04-02 00:00:00"));
+        assertEquals("2025-04-01 00:00:00", watermarkService.get(key));
+    }
+}
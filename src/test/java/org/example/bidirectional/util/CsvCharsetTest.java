@@ -0,0 +1,60 @@
+package org.example.bidirectional.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CsvCharsetTest {
+
+    private static CsvCharset detect(byte[] bytes) {
+        return CsvCharset.detect(bytes, bytes.length);
+    }
+
+    @Test
+    void testByteOrderMarks() {
+        CsvCharset utf8 = detect(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a'});
+        assertEquals(StandardCharsets.UTF_8, utf8.getCharset());
+        assertEquals(3, utf8.getBomLength());
+
+        CsvCharset utf16le = detect(new byte[]{(byte) 0xFF, (byte) 0xFE, 'a', 0});
+        assertEquals(StandardCharsets.UTF_16LE, utf16le.getCharset());
+        assertEquals(2, utf16le.getBomLength());
+        assertFalse(utf16le.isSplittable());
+
+        assertEquals(StandardCharsets.UTF_16BE, detect(new byte[]{(byte) 0xFE, (byte) 0xFF, 0, 'a'}).getCharset());
+    }
+
+    @Test
+    void testWithoutByteOrderMark() {
+        CsvCharset utf8 = detect("name,city\nJosé,Zürich\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(StandardCharsets.UTF_8, utf8.getCharset());
+        assertEquals(0, utf8.getBomLength());
+        assertTrue(utf8.isSplittable());
+
+        Charset windows1252 = Charset.forName("windows-1252");
+        assertEquals(windows1252, detect("name,city\nJosé,Zürich\n".getBytes(windows1252)).getCharset());
+        assertEquals(StandardCharsets.UTF_8, detect(new byte[0]).getCharset());
+    }
+
+    @Test
+    void testSampleEndingInsideCharacter() {
+        byte[] bytes = "aé".getBytes(StandardCharsets.UTF_8);
+        assertEquals(StandardCharsets.UTF_8, CsvCharset.detect(bytes, bytes.length - 1).getCharset());
+    }
+
+    @Test
+    void testStreamSkipsByteOrderMark() throws IOException {
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(
+                new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'i', 'd'}));
+
+        assertEquals(StandardCharsets.UTF_8, CsvCharset.detect(in).getCharset());
+        assertEquals("id", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,80 @@
+package org.example.bidirectional.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CsvRangesTest {
+
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        file = Files.createTempFile("csv_ranges", ".csv");
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private String slice(FileChannel channel, long start, long end) throws IOException {
+        try (InputStream in = new MappedRangeInputStream(channel, start, end)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void testHeaderEndSkipsQuotedNewline() throws IOException {
+        Files.writeString(file, "id,\"multi\nline header\"\n1,a\n");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertEquals("id,\"multi\nline header\"\n", slice(channel, 0, CsvRanges.headerEnd(channel)));
+        }
+    }
+
+    @Test
+    void testSplitIsRecordAligned() throws IOException {
+        StringBuilder csv = new StringBuilder("id,bio\n");
+        for (int i = 0; i < 200; i++)
+            csv.append(i).append(",\"line one\nline \"\"two\"\"\"\n");
+        Files.writeString(file, csv.toString());
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long start = CsvRanges.headerEnd(channel);
+            List<Long> bounds = CsvRanges.split(channel, start, channel.size(), 4);
+
+            assertEquals(5, bounds.size());
+            assertEquals(start, (long) bounds.getFirst());
+            assertEquals(channel.size(), (long) bounds.getLast());
+
+            StringBuilder joined = new StringBuilder();
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                String part = slice(channel, bounds.get(i), bounds.get(i + 1));
+                assertTrue(part.matches("(?s)(\\d+,\"line one\nline \"\"two\"\"\"\n)+"), part);
+                joined.append(part);
+            }
+            assertEquals(csv.substring((int) start), joined.toString());
+        }
+    }
+
+    @Test
+    void testLastBoundaryDropsPartialRecord() throws IOException {
+        Files.writeString(file, "1,a\n2,\"unfinished\n");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertEquals(4, CsvRanges.lastBoundary(channel, 0, channel.size()));
+        }
+    }
+}
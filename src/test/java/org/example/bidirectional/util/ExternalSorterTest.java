@@ -0,0 +1,90 @@
+package org.example.bidirectional.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExternalSorterTest {
+
+    @Test
+    void testSpilledRunsAreMerged() throws Exception {
+        Random random = new Random(42);
+        List<String[]> sorted = new ArrayList<>();
+
+        // A tiny run size spills every few rows
+        try (ExternalSorter sorter = new ExternalSorter(new int[]{1, 0}, List.of("Nullable(UInt32)", "String"), 1024)) {
+            for (int i = 0; i < 1000; i++)
+                sorter.add(new String[]{"name" + random.nextInt(10), String.valueOf(random.nextInt(200)), "x"});
+            sorter.add(new String[]{"b", "\\N", "null"});
+            sorter.add(new String[]{"a", "", "empty"});
+
+            assertTrue(sorter.getRuns() > 1);
+            sorter.forEachSorted(sorted::add);
+        }
+
+        assertEquals(1002, sorted.size());
+        assertEquals("empty", sorted.getFirst()[2]);
+        assertEquals("null", sorted.getLast()[2]);
+
+        // Numeric order on the first key, so 9 before 10
+        for (int i = 2; i < sorted.size() - 1; i++) {
+            int previous = Integer.parseInt(sorted.get(i - 1)[1]);
+            int current = Integer.parseInt(sorted.get(i)[1]);
+            assertTrue(previous < current || previous == current && sorted.get(i - 1)[0].compareTo(sorted.get(i)[0]) <= 0);
+        }
+    }
+
+    @Test
+    void testInMemory() throws Exception {
+        List<String> dates = new ArrayList<>();
+        try (ExternalSorter sorter = new ExternalSorter(new int[]{0}, List.of("Date"), 1 << 20)) {
+            sorter.add(new String[]{"2025-03-01"});
+            sorter.add(new String[]{"2024-12-31"});
+            sorter.add(new String[]{"2025-01-15"});
+
+            sorter.forEachSorted(row -> dates.add(row[0]));
+            assertEquals(0, sorter.getRuns());
+        }
+
+        assertEquals(List.of("2024-12-31", "2025-01-15", "2025-03-01"), dates);
+    }
+
+    @Test
+    void testEnumSortsByValue() throws Exception {
+        List<String> levels = new ArrayList<>();
+        try (ExternalSorter sorter = new ExternalSorter(new int[]{0},
+                List.of("LowCardinality(Enum8('warn' = 2, 'error' = 3, 'debug' = 0, 'info' = 1))"), 1 << 20)) {
+            for (String level : List.of("error", "warn", "1", "debug", "unknown"))
+                sorter.add(new String[]{level});
+
+            sorter.forEachSorted(row -> levels.add(row[0]));
+        }
+
+        assertEquals(List.of("debug", "1", "warn", "error", "unknown"), levels);
+    }
+
+    @Test
+    void testInfinityAndMalformedNumbers() throws Exception {
+        List<String> values = new ArrayList<>();
+        try (ExternalSorter sorter = new ExternalSorter(new int[]{0}, List.of("Float64"), 1 << 20)) {
+            for (String value : List.of("nan", "inf", "1e3", "-inf", "abc", "+5"))
+                sorter.add(new String[]{value});
+
+            sorter.forEachSorted(row -> values.add(row[0]));
+        }
+
+        assertEquals(List.of("-inf", "+5", "1e3", "inf"), values.subList(0, 4));
+    }
+
+    @Test
+    void testNumericTypes() {
+        assertTrue(ExternalSorter.isNumeric("LowCardinality(Nullable(Int64))"));
+        assertTrue(ExternalSorter.isNumeric("Decimal(10, 2)"));
+        assertFalse(ExternalSorter.isNumeric("DateTime64(3)"));
+        assertFalse(ExternalSorter.isNumeric("String"));
+    }
+}
@@ -0,0 +1,38 @@
+package org.example.bidirectional.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartitionKeyTest {
+
+    @Test
+    void testDateFunctions() {
+        List<String> columns = List.of("id", "ts");
+        String[] row = {"1", "2025-02-28 23:59:59"};
+
+        assertEquals("202502", PartitionKey.compile(List.of("toYYYYMM(ts)"), columns).of(row));
+        assertEquals("20250228", PartitionKey.compile(List.of("toYYYYMMDD(`ts`)"), columns).of(row));
+        assertEquals("2025-02-01", PartitionKey.compile(List.of("toStartOfMonth(ts)"), columns).of(row));
+        assertEquals("2025-02-28", PartitionKey.compile(List.of("toDate(ts)"), columns).of(row));
+        assertEquals("197001", PartitionKey.compile(List.of("toYYYYMM(ts)"), columns).of(new String[]{"1", "3600"}));
+    }
+
+    @Test
+    void testTuple() {
+        PartitionKey key = PartitionKey.compile(List.of("tenant", "toYear(day)"), List.of("day", "tenant"));
+
+        assertEquals(key.of(new String[]{"2024-01-01", "a"}), key.of(new String[]{"2024-12-31", "a"}));
+        assertNotEquals(key.of(new String[]{"2024-01-01", "a"}), key.of(new String[]{"2024-01-01", "b"}));
+    }
+
+    @Test
+    void testUnsupported() {
+        assertNull(PartitionKey.compile(List.of("intDiv(id, 1000)"), List.of("id")));
+        assertNull(PartitionKey.compile(List.of("toYYYYMM(ts)"), List.of("id")));
+        assertNull(PartitionKey.compile(List.of("toMonday(ts)"), List.of("ts")));
+        assertNull(PartitionKey.compile(List.of(), List.of("ts")));
+    }
+}
@@ -0,0 +1,35 @@
+package org.example.bidirectional.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RangeFileWriterTest {
+
+    @Test
+    void testOpenAndClosedRanges() {
+        assertArrayEquals(new long[]{100, 999}, RangeFileWriter.parseRange("bytes=100-", 1000));
+        assertArrayEquals(new long[]{0, 99}, RangeFileWriter.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[]{500, 999}, RangeFileWriter.parseRange("bytes=500-5000", 1000));
+    }
+
+    @Test
+    void testSuffixRange() {
+        assertArrayEquals(new long[]{900, 999}, RangeFileWriter.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[]{0, 999}, RangeFileWriter.parseRange("bytes=-5000", 1000));
+    }
+
+    @Test
+    void testUnsatisfiableRange() {
+        assertEquals(0, RangeFileWriter.parseRange("bytes=1000-", 1000).length);
+        assertEquals(0, RangeFileWriter.parseRange("bytes=-0", 1000).length);
+    }
+
+    @Test
+    void testIgnoredRanges() {
+        assertNull(RangeFileWriter.parseRange(null, 1000));
+        assertNull(RangeFileWriter.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(RangeFileWriter.parseRange("items=0-1", 1000));
+        assertNull(RangeFileWriter.parseRange("bytes=abc-", 1000));
+    }
+}
@@ -0,0 +1,47 @@
+package org.example.bidirectional.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RowValidatorTest {
+
+    @Test
+    void testNumbers() {
+        assertNull(RowValidator.forType("UInt8").apply("255"));
+        assertNotNull(RowValidator.forType("UInt8").apply("256"));
+        assertNotNull(RowValidator.forType("UInt32").apply("-1"));
+        assertNull(RowValidator.forType("Int64").apply("-9223372036854775808"));
+        assertNotNull(RowValidator.forType("Int32").apply("12a"));
+        assertNull(RowValidator.forType("Float64").apply("-inf"));
+        assertNull(RowValidator.forType("Decimal(5, 2)").apply("123.45"));
+        assertNotNull(RowValidator.forType("Decimal(5, 2)").apply("1234.5"));
+    }
+
+    @Test
+    void testDatesAndWrappers() {
+        assertNull(RowValidator.forType("Date").apply("2025-02-28"));
+        assertNotNull(RowValidator.forType("Date").apply("2025-02-30"));
+        assertNull(RowValidator.forType("DateTime64(3, 'UTC')").apply("2025-02-28 10:11:12.123"));
+        assertNotNull(RowValidator.forType("DateTime").apply("28/02/2025"));
+        assertNull(RowValidator.forType("Nullable(Int32)").apply("\\N"));
+        assertNotNull(RowValidator.forType("LowCardinality(Nullable(UUID))").apply("not-a-uuid"));
+        assertNull(RowValidator.forType("Enum8('a' = 1, 'it\\'s' = 2)").apply("it's"));
+        assertNotNull(RowValidator.forType("Enum8('a' = 1, 'b' = 2)").apply("c"));
+        assertNull(RowValidator.forType("Array(String)").apply("anything"));
+    }
+
+    @Test
+    void testRowReason() {
+        RowValidator validator = new RowValidator(
+                List.of("id", "name", "amount"),
+                Map.of("id", "UInt32", "name", "String", "amount", "Decimal32(2)"));
+
+        assertNull(validator.validate(new String[]{"1", "x", ""}));
+        assertNull(validator.validate(new String[]{"1", null, null}));
+        assertEquals("amount: 'abc' is not a decimal", validator.validate(new String[]{"1", "x", "abc"}));
+    }
+}
@@ -0,0 +1,37 @@
+package org.example.bidirectional.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketTest {
+
+    @Test
+    void testUnlimitedNeverBlocks() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0);
+        assertTrue(bucket.isUnlimited());
+
+        long start = System.nanoTime();
+        bucket.acquire(Long.MAX_VALUE);
+        assertTrue(System.nanoTime() - start < 50_000_000L);
+    }
+
+    @Test
+    void testThrottledStreamIsSlowedToRate() throws Exception {
+        // One second of burst is available up front, the remaining half second is waited for
+        TokenBucket bucket = new TokenBucket(100_000);
+        byte[] data = new byte[150_000];
+
+        long start = System.nanoTime();
+        try (InputStream in = new ThrottledInputStream(new ByteArrayInputStream(data), List.of(bucket))) {
+            assertEquals(data.length, in.readAllBytes().length);
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(elapsedMs >= 400, "finished after " + elapsedMs + " ms");
+    }
+}